@@ -0,0 +1,130 @@
+package com.yoshio3;
+
+import com.azure.core.http.HttpHeaderName;
+import com.azure.core.http.HttpHeaders;
+import java.util.concurrent.TimeUnit;
+
+// Token bucket for the Azure OpenAI Tokens-Per-Minute (TPM) quota.
+// The refill rate is adapted with AIMD (additive increase on success, multiplicative decrease on
+// HTTP 429), and the Retry-After / x-ratelimit-* response headers are used to synchronize the
+// bucket with the quota that Azure OpenAI actually grants.
+public class AdaptiveRateLimiter {
+
+    private static final HttpHeaderName RETRY_AFTER_MS = HttpHeaderName.fromString("retry-after-ms");
+    private static final HttpHeaderName RETRY_AFTER = HttpHeaderName.fromString("retry-after");
+    private static final HttpHeaderName REMAINING_TOKENS =
+            HttpHeaderName.fromString("x-ratelimit-remaining-tokens");
+    private static final HttpHeaderName REMAINING_REQUESTS =
+            HttpHeaderName.fromString("x-ratelimit-remaining-requests");
+
+    // Wait time when a 429 response does not contain a Retry-After header
+    private static final long DEFAULT_RETRY_AFTER_MILLIS = 10_000;
+    // Ratio of the maximum rate added after each successful call (additive increase)
+    private static final double INCREASE_RATIO = 0.05;
+    // Ratio applied to the rate after a 429 response (multiplicative decrease)
+    private static final double DECREASE_RATIO = 0.5;
+    // The rate never goes below this ratio of the maximum rate
+    private static final double MIN_RATE_RATIO = 0.05;
+
+    private final double maxTokensPerMinute;
+    private final double capacity;
+    private double tokensPerMinute;
+    private double availableTokens;
+    private long lastRefillNanos;
+    // No request is allowed until this time (set from Retry-After)
+    private long blockedUntilNanos;
+
+    public AdaptiveRateLimiter(int maxTokensPerMinute, int maxTokensPerRequest) {
+        this.maxTokensPerMinute = Math.max(1, maxTokensPerMinute);
+        // Allow a burst of about 10 seconds, but at least one full request
+        this.capacity = Math.max(this.maxTokensPerMinute / 6, maxTokensPerRequest);
+        this.tokensPerMinute = this.maxTokensPerMinute;
+        this.availableTokens = capacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    // Block until the requested number of tokens is available
+    public synchronized void acquire(int tokens) throws InterruptedException {
+        double required = Math.min(tokens, capacity);
+        while (true) {
+            long now = System.nanoTime();
+            refill(now);
+            long waitNanos;
+            if (blockedUntilNanos > now) {
+                waitNanos = blockedUntilNanos - now;
+            } else if (availableTokens >= required) {
+                availableTokens -= required;
+                return;
+            } else {
+                double missing = required - availableTokens;
+                waitNanos = (long) (missing / tokensPerMinute * TimeUnit.MINUTES.toNanos(1));
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, Math.max(waitNanos, TimeUnit.MILLISECONDS.toNanos(1)));
+        }
+    }
+
+    // Additive increase after a successful call
+    public synchronized void onSuccess(HttpHeaders headers) {
+        tokensPerMinute = Math.min(maxTokensPerMinute,
+                tokensPerMinute + maxTokensPerMinute * INCREASE_RATIO);
+        if (headers != null) {
+            // Do not send more than the quota remaining on the server side
+            Double remainingTokens = parseDouble(headers.getValue(REMAINING_TOKENS));
+            if (remainingTokens != null && remainingTokens < availableTokens) {
+                availableTokens = remainingTokens;
+            }
+            Double remainingRequests = parseDouble(headers.getValue(REMAINING_REQUESTS));
+            if (remainingRequests != null && remainingRequests <= 0) {
+                availableTokens = 0;
+            }
+        }
+        notifyAll();
+    }
+
+    // Multiplicative decrease after HTTP 429, and wait for the time given by Retry-After
+    public synchronized void onThrottled(HttpHeaders headers) {
+        tokensPerMinute = Math.max(maxTokensPerMinute * MIN_RATE_RATIO,
+                tokensPerMinute * DECREASE_RATIO);
+        availableTokens = 0;
+        long retryAfterMillis = getRetryAfterMillis(headers);
+        blockedUntilNanos = Math.max(blockedUntilNanos,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis));
+        notifyAll();
+    }
+
+    // Current refill rate (tokens per minute)
+    public synchronized int getTokensPerMinute() {
+        return (int) tokensPerMinute;
+    }
+
+    private void refill(long now) {
+        double elapsedMinutes = (double) (now - lastRefillNanos) / TimeUnit.MINUTES.toNanos(1);
+        availableTokens = Math.min(capacity, availableTokens + elapsedMinutes * tokensPerMinute);
+        lastRefillNanos = now;
+    }
+
+    private static long getRetryAfterMillis(HttpHeaders headers) {
+        if (headers != null) {
+            Double retryAfterMillis = parseDouble(headers.getValue(RETRY_AFTER_MS));
+            if (retryAfterMillis != null) {
+                return retryAfterMillis.longValue();
+            }
+            Double retryAfterSeconds = parseDouble(headers.getValue(RETRY_AFTER));
+            if (retryAfterSeconds != null) {
+                return (long) (retryAfterSeconds * 1000);
+            }
+        }
+        return DEFAULT_RETRY_AFTER_MILLIS;
+    }
+
+    private static Double parseDouble(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
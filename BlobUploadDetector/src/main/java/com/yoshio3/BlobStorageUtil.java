@@ -0,0 +1,67 @@
+package com.yoshio3;
+
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.models.BlobProperties;
+import com.microsoft.azure.functions.ExecutionContext;
+import java.io.InputStream;
+
+public class BlobStorageUtil {
+
+    // Connection string of the Storage Account (the same account as the Blob Trigger)
+    private static final String STORAGE_CONNECTION_STRING;
+    // Container name for the PDF files
+    private static final String BLOB_CONTAINER_NAME;
+
+    static {
+        STORAGE_CONNECTION_STRING = System.getenv("AzureWebJobsStorage");
+        BLOB_CONTAINER_NAME = EnvironmentUtil.getString("AzureBlobstorageContainerName", "pdfs");
+    }
+
+    private final BlobContainerClient containerClient;
+
+    public BlobStorageUtil() {
+        containerClient = new BlobServiceClientBuilder()
+                .connectionString(STORAGE_CONNECTION_STRING).buildClient()
+                .getBlobContainerClient(BLOB_CONTAINER_NAME);
+    }
+
+    // Open the blob as a stream (the content is downloaded in chunks while it is read)
+    public InputStream openInputStream(String fileName) {
+        return getBlobClient(fileName).openInputStream();
+    }
+
+    public BlobClient getBlobClient(String fileName) {
+        return containerClient.getBlobClient(fileName);
+    }
+
+    // ETag of the current version of the blob (null if it can not be obtained)
+    public String getETag(String fileName, ExecutionContext context) {
+        BlobProperties properties = getProperties(fileName, context);
+        return properties == null ? null : properties.getETag();
+    }
+
+    // Properties (ETag, last modified time, metadata) of the blob (null if they can not be
+    // obtained)
+    public BlobProperties getProperties(String fileName, ExecutionContext context) {
+        try {
+            return getBlobClient(fileName).getProperties();
+        } catch (RuntimeException e) {
+            context.getLogger().warning("Error while reading the properties of " + fileName + ": "
+                    + e.getMessage());
+            return null;
+        }
+    }
+
+    // Get the blob name from the subject of an Event Grid event
+    // (/blobServices/default/containers/{container}/blobs/{name})
+    public static String getBlobNameFromSubject(String subject) {
+        String prefix = "/containers/" + BLOB_CONTAINER_NAME + "/blobs/";
+        int index = subject == null ? -1 : subject.indexOf(prefix);
+        if (index < 0) {
+            return null;
+        }
+        return subject.substring(index + prefix.length());
+    }
+}
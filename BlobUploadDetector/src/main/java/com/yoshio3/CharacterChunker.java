@@ -0,0 +1,60 @@
+package com.yoshio3;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Splits the text of a page into chunks of approximately 7500 characters
+// (the number of tokens of each chunk is estimated)
+public class CharacterChunker implements TextChunker {
+
+    // Maximum number of characters per page (if exceeded, the page will be split and processed)
+    private static final int MAX_SEPARATE_TOKEN_LENGTH = 7500;
+
+    @Override
+    public List<TextChunk> split(String pageText) {
+        List<TextChunk> chunks = new ArrayList<>();
+        if (pageText.length() > MAX_SEPARATE_TOKEN_LENGTH) {
+            splitText(pageText, MAX_SEPARATE_TOKEN_LENGTH)
+                    .forEach(text -> chunks.add(new TextChunk(text, TokenEstimator.estimate(text))));
+        } else {
+            chunks.add(new TextChunk(pageText, TokenEstimator.estimate(pageText)));
+        }
+        return chunks;
+    }
+
+    // The input string is split into approximately 7500-character segments, with divisions occurring at punctuation marks.
+    // Based on experience, splitting at 8000 tokens out of 8192 may cause overflow when issuing commands.
+    // The segments are sliced by their offsets, so the remaining text is not copied for each segment.
+    private static List<String> splitText(String text, int maxLength) {
+        List<String> chunks = new ArrayList<>();
+        int offset = 0;
+        while (text.length() - offset > maxLength) {
+            int splitIndex = findSplitIndex(text, offset, maxLength);
+            chunks.add(text.substring(offset, splitIndex));
+            offset = splitIndex;
+        }
+        chunks.add(text.substring(offset));
+        return chunks;
+    }
+
+    // The input string is divided into segments of around 7500 characters, with divisions occurring at punctuation marks (such as periods, question marks, and exclamation marks).
+    // If no suitable punctuation is found, the text will simply be split every 7200 characters.
+    private static int findSplitIndex(String text, int offset, int maxLength) {
+        // Search for punctuation marks within the range of 7200-7500 characters
+        int start = offset + maxLength - 300;
+        int splitIndex = offset + maxLength;
+        while (splitIndex > start) {
+            char c = text.charAt(splitIndex);
+            if (isPunctuation(c)) {
+                break;
+            }
+            splitIndex--;
+        }
+        return splitIndex;
+    }
+
+    // Determination of punctuation marks
+    private static boolean isPunctuation(char c) {
+        return c == '.' || c == ':' || c == ';' || c == '?' || c == '!';
+    }
+}
@@ -4,17 +4,24 @@ import com.azure.cosmos.CosmosAsyncClient;
 import com.azure.cosmos.CosmosAsyncContainer;
 import com.azure.cosmos.CosmosAsyncDatabase;
 import com.azure.cosmos.CosmosClientBuilder;
-import com.azure.cosmos.models.CosmosItemResponse;
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.CosmosPatchItemRequestOptions;
+import com.azure.cosmos.models.CosmosPatchOperations;
 import com.azure.cosmos.models.CosmosQueryRequestOptions;
 import com.azure.cosmos.models.FeedResponse;
 import com.azure.cosmos.models.PartitionKey;
+import com.azure.cosmos.models.SqlParameter;
 import com.azure.cosmos.models.SqlQuerySpec;
 import com.microsoft.azure.functions.ExecutionContext;
 import com.yoshio3.models.CosmosDBDocument;
-import com.yoshio3.models.CosmosDBDocumentStatus;
-import reactor.core.publisher.Mono;
+import com.yoshio3.models.FileFanOut;
+import com.yoshio3.models.IngestionCheckpoint;
+import com.yoshio3.models.PageRangeWorkItem;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.UUID;
 
 public class CosmosDBUtil {
 
@@ -40,43 +47,129 @@ public class CosmosDBUtil {
         container = database.getContainer(COSMOS_DB_CONTAINER_NAME);
     }
 
-    public Mono<CosmosItemResponse<CosmosDBDocument>> createDocument(String id, String fileName,
-            CosmosDBDocumentStatus status, int pageNumber, ExecutionContext context) {
-        CosmosDBDocument document = new CosmosDBDocument(id, fileName, status, pageNumber);
-        context.getLogger().info("Cosmos DB create Document: " + document);
-        return container.createItem(document, null);
+    // Status writer for the chunks of one file (please close it when the file is processed)
+    public CosmosStatusWriter createStatusWriter(ExecutionContext context) {
+        return new CosmosStatusWriter(container, context);
     }
 
-    public void updateStatus(String id, CosmosDBDocumentStatus status, 
-            ExecutionContext context) {
-        context.getLogger().info("Cosmos DB update Status: Start " + id + ":" + status);
-        container.readItem(id, new PartitionKey(id), CosmosDBDocument.class)
-                .subscribe(responseItem -> {
-                    CosmosDBDocument item = responseItem.getItem();
-                    context.getLogger().info("Cosmos DB read Document: " + item);                 
-                    context.getLogger().info("Cosmos DB read Document: " + item);
-                    String updateid = item.id();
-                    CosmosDBDocument updateDocument =
-                            new CosmosDBDocument(updateid, item.fileName(), status, item.pageNumber());
-
-                    container.replaceItem(updateDocument, item.id(), new PartitionKey(item.id()), null)
-                            .subscribe(response -> {
-                                context.getLogger().info(
-                                        "Cosmos DB update Status: " + id + ":" + updateDocument);
-                                context.getLogger().fine("Cosmos DB Update Response Code : "
-                                        + response.getStatusCode());
-                            }, error -> {
-                                context.getLogger()
-                                        .severe("Cosmos DB update Failed: " + error.getMessage());
-                            }, () -> {
-                                context.getLogger().fine("Cosmos DB update Completed");
-                            });
-                });
+    // Checkpoint of the ingestion of the range (null if the range has no checkpoint)
+    public IngestionCheckpoint readCheckpoint(PageRangeWorkItem range, ExecutionContext context) {
+        return readDocument(checkpointId(range), IngestionCheckpoint.class, context);
+    }
+
+    public void saveCheckpoint(IngestionCheckpoint checkpoint, ExecutionContext context) {
+        container.upsertItem(checkpoint).block();
+        context.getLogger().info("Cosmos DB save Checkpoint: " + checkpoint.fileName()
+                + " committed page: " + checkpoint.committedPage() + "/"
+                + checkpoint.lastPage() + " in-flight chunks: "
+                + checkpoint.inFlightChunks().size() + " completed: " + checkpoint.completed());
+    }
+
+    // The file name may contain characters which can not be used in an id ('/')
+    public static String checkpointId(PageRangeWorkItem range) {
+        String id = documentId(IngestionCheckpoint.DOCUMENT_TYPE, range.fileName());
+        return range.isWholeFile() ? id : id + "-" + range.rangeIndex();
+    }
+
+    // Completion of the fanned out file (null if the file was not fanned out)
+    public FileFanOut readFanOut(String fileName, ExecutionContext context) {
+        return readDocument(documentId(FileFanOut.DOCUMENT_TYPE, fileName), FileFanOut.class,
+                context);
+    }
+
+    // Register the ranges of a new version of the file (no range is completed yet)
+    public void createFanOut(String fileName, String blobETag, int numberOfPages,
+            int rangeCount, ExecutionContext context) {
+        container.upsertItem(new FileFanOut(documentId(FileFanOut.DOCUMENT_TYPE, fileName),
+                fileName, FileFanOut.DOCUMENT_TYPE, blobETag, numberOfPages, rangeCount,
+                new HashMap<>(), new HashMap<>(), false)).block();
+        context.getLogger().info("Cosmos DB create FanOut: " + fileName + " pages: "
+                + numberOfPages + " ranges: " + rangeCount);
+    }
+
+    // Mark the range as completed, and return the updated completion of the file.
+    // The patch is only applied to the same version (ETag) of the file (null otherwise).
+    public FileFanOut completeRange(PageRangeWorkItem range, ExecutionContext context) {
+        String id = documentId(FileFanOut.DOCUMENT_TYPE, range.fileName());
+        CosmosPatchItemRequestOptions options = new CosmosPatchItemRequestOptions();
+        options.setFilterPredicate("FROM c WHERE c.blobETag = '"
+                + range.blobETag().replace("'", "\\'") + "'");
+        CosmosPatchOperations operations = CosmosPatchOperations.create()
+                .set("/completedRanges/" + range.rangeIndex(), true);
+        try {
+            FileFanOut fanOut = container
+                    .patchItem(id, new PartitionKey(id), operations, options, FileFanOut.class)
+                    .block().getItem();
+            if (fanOut.completedRanges().size() >= fanOut.rangeCount() && !fanOut.completed()) {
+                container.patchItem(id, new PartitionKey(id),
+                        CosmosPatchOperations.create().set("/completed", true), options,
+                        FileFanOut.class).block();
+                context.getLogger().info("Cosmos DB FanOut completed: " + range.fileName()
+                        + " ranges: " + fanOut.rangeCount());
+            }
+            return fanOut;
+        } catch (CosmosException e) {
+            // 412 : a newer version of the file was uploaded
+            context.getLogger().warning("Cosmos DB complete Range Failed: " + range.fileName()
+                    + " range: " + range.rangeIndex() + " : " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Mark the range as stopped (its last delivery failed), and return the updated completion of
+    // the file (null if it is not the same version of the file)
+    public FileFanOut stopRange(PageRangeWorkItem range, ExecutionContext context) {
+        String id = documentId(FileFanOut.DOCUMENT_TYPE, range.fileName());
+        CosmosPatchItemRequestOptions options = new CosmosPatchItemRequestOptions();
+        options.setFilterPredicate("FROM c WHERE c.blobETag = '"
+                + range.blobETag().replace("'", "\\'") + "'");
+        CosmosPatchOperations operations = CosmosPatchOperations.create()
+                .set("/stoppedRanges/" + range.rangeIndex(), true);
+        try {
+            return container
+                    .patchItem(id, new PartitionKey(id), operations, options, FileFanOut.class)
+                    .block().getItem();
+        } catch (CosmosException e) {
+            context.getLogger().warning("Cosmos DB stop Range Failed: " + range.fileName()
+                    + " range: " + range.rangeIndex() + " : " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static String documentId(String documentType, String fileName) {
+        return documentType + "-"
+                + UUID.nameUUIDFromBytes(fileName.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Read a document by its id (null if it does not exist)
+    private <T> T readDocument(String id, Class<T> documentClass, ExecutionContext context) {
+        try {
+            return container.readItem(id, new PartitionKey(id), documentClass).block().getItem();
+        } catch (CosmosException e) {
+            if (e.getStatusCode() != 404) {
+                context.getLogger().warning("Cosmos DB read " + documentClass.getSimpleName()
+                        + " Failed: " + e.getMessage());
+            }
+            return null;
+        }
+    }
+
+    // Delete the documents of all chunks (and the checkpoints) of the file (the blob was deleted)
+    public void deleteDocuments(String fileName, ExecutionContext context) {
+        SqlQuerySpec querySpec = new SqlQuerySpec(
+                "SELECT VALUE c.id FROM c WHERE c.fileName = @fileName",
+                new SqlParameter("@fileName", fileName));
+        Long deleted = container
+                .queryItems(querySpec, new CosmosQueryRequestOptions(), String.class)
+                .flatMap(id -> container.deleteItem(id, new PartitionKey(id)))
+                .count().block();
+        context.getLogger().info("Cosmos DB deleted Documents: " + fileName + ":" + deleted);
     }
 
     public List<CosmosDBDocument> getAllDocuments() {
         List<CosmosDBDocument> documents = new ArrayList<>();
-        String query = "SELECT * FROM c";
+        // The checkpoints and fan-out documents of the files are not chunk documents
+        String query = "SELECT * FROM c WHERE NOT IS_DEFINED(c.documentType)";
         CosmosQueryRequestOptions options = new CosmosQueryRequestOptions();
         options.setQueryMetricsEnabled(true);
         SqlQuerySpec querySpec = new SqlQuerySpec(query);
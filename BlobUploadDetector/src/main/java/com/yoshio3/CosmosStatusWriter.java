@@ -0,0 +1,168 @@
+package com.yoshio3;
+
+import com.azure.cosmos.CosmosAsyncContainer;
+import com.azure.cosmos.models.CosmosBulkOperationResponse;
+import com.azure.cosmos.models.CosmosBulkOperations;
+import com.azure.cosmos.models.CosmosItemOperation;
+import com.azure.cosmos.models.CosmosPatchOperations;
+import com.azure.cosmos.models.PartitionKey;
+import com.microsoft.azure.functions.ExecutionContext;
+import com.yoshio3.models.CosmosDBDocument;
+import com.yoshio3.models.CosmosDBDocumentStatus;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import reactor.core.publisher.Flux;
+
+// Writes the status documents of the chunks of one file to Cosmos DB.
+// The status transitions are not written one by one : only the latest status of each chunk is
+// kept until the next flush (e.g. FINISH_DB_INSERTION -> COMPLETED is written as COMPLETED),
+// and the pending writes are sent with the bulk execution API, as an upsert for a new document
+// or as a patch of "/status" (no read before the write) for an existing one.
+// The flushes are serialized, so the writes for the same id are applied in order.
+public class CosmosStatusWriter implements AutoCloseable {
+
+    // Number of pending chunks which triggers a flush
+    private static final int STATUS_BATCH_SIZE;
+    // Maximum time (in milliseconds) a status is kept before it is written
+    private static final long STATUS_FLUSH_INTERVAL_MILLIS;
+
+    // Timer shared by all status writers on the Function host
+    private static final ScheduledExecutorService FLUSH_SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cosmos-status-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    static {
+        STATUS_BATCH_SIZE = Math.max(1, EnvironmentUtil.getInt("AzureCosmosDbStatusBatchSize", 100));
+        STATUS_FLUSH_INTERVAL_MILLIS =
+                Math.max(1, EnvironmentUtil.getLong("AzureCosmosDbStatusFlushIntervalMillis", 1000));
+    }
+
+    // Latest status of a chunk (document is set when the document has not been created yet)
+    private record PendingStatus(CosmosDBDocument document, CosmosDBDocumentStatus status) {
+
+        PendingStatus withStatus(CosmosDBDocumentStatus newStatus) {
+            if (document == null) {
+                return new PendingStatus(null, newStatus);
+            }
+            return new PendingStatus(new CosmosDBDocument(document.id(), document.fileName(),
+                    newStatus, document.pageNumber()), newStatus);
+        }
+    }
+
+    private final CosmosAsyncContainer container;
+    private final ExecutionContext context;
+    private final Map<String, PendingStatus> pending = new ConcurrentHashMap<>();
+    private final ScheduledFuture<?> flushTask;
+
+    // Statistics for the whole file
+    private final AtomicInteger transitionCount = new AtomicInteger();
+    private int writeCount;
+    private double requestCharge;
+
+    public CosmosStatusWriter(CosmosAsyncContainer container, ExecutionContext context) {
+        this.container = container;
+        this.context = context;
+        flushTask = FLUSH_SCHEDULER.scheduleWithFixedDelay(this::flushQuietly,
+                STATUS_FLUSH_INTERVAL_MILLIS, STATUS_FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Register the document of a new chunk
+    public void createDocument(String id, String fileName, CosmosDBDocumentStatus status,
+            int pageNumber) {
+        CosmosDBDocument document = new CosmosDBDocument(id, fileName, status, pageNumber);
+        context.getLogger().fine("Cosmos DB create Document: " + document);
+        transitionCount.incrementAndGet();
+        pending.put(id, new PendingStatus(document, status));
+        flushIfFull();
+    }
+
+    // Change the status of a chunk (replaces the pending status of the chunk, if any)
+    public void updateStatus(String id, CosmosDBDocumentStatus status) {
+        context.getLogger().fine("Cosmos DB update Status: " + id + ":" + status);
+        transitionCount.incrementAndGet();
+        pending.compute(id, (key, previous) -> previous == null ? new PendingStatus(null, status)
+                : previous.withStatus(status));
+        flushIfFull();
+    }
+
+    // Write all pending statuses with one bulk execution, and wait for the result
+    public synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<CosmosItemOperation> operations = new ArrayList<>(pending.size());
+        for (String id : new ArrayList<>(pending.keySet())) {
+            PendingStatus pendingStatus = pending.remove(id);
+            if (pendingStatus == null) {
+                continue;
+            }
+            PartitionKey partitionKey = new PartitionKey(id);
+            if (pendingStatus.document() != null) {
+                operations.add(CosmosBulkOperations
+                        .getUpsertItemOperation(pendingStatus.document(), partitionKey));
+            } else {
+                operations.add(CosmosBulkOperations.getPatchItemOperation(id, partitionKey,
+                        CosmosPatchOperations.create().set("/status",
+                                pendingStatus.status().name())));
+            }
+        }
+
+        long start = System.nanoTime();
+        List<CosmosBulkOperationResponse<Object>> responses = container
+                .executeBulkOperations(Flux.fromIterable(operations)).collectList().block();
+        int failed = 0;
+        for (CosmosBulkOperationResponse<Object> response : responses) {
+            if (response.getResponse() != null) {
+                requestCharge += response.getResponse().getRequestCharge();
+            }
+            if (response.getException() != null || response.getResponse() == null
+                    || !response.getResponse().isSuccessStatusCode()) {
+                failed++;
+                context.getLogger().severe("Cosmos DB status write Failed: "
+                        + response.getOperation().getId() + " : "
+                        + (response.getException() != null ? response.getException().getMessage()
+                                : response.getResponse() == null ? "no response"
+                                        : "status code " + response.getResponse().getStatusCode()));
+            }
+        }
+        writeCount += operations.size();
+        context.getLogger().info("Cosmos DB bulk status write: " + operations.size()
+                + " documents (" + failed + " failed) in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    @Override
+    public void close() {
+        flushTask.cancel(false);
+        flush();
+        synchronized (this) {
+            context.getLogger().info("Cosmos DB status transitions: " + transitionCount.get()
+                    + " Written documents: " + writeCount + " Request charge: "
+                    + Math.round(requestCharge) + " RU");
+        }
+    }
+
+    private void flushIfFull() {
+        if (pending.size() >= STATUS_BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            context.getLogger().severe("Cosmos DB status write Failed: " + e.getMessage());
+        }
+    }
+}
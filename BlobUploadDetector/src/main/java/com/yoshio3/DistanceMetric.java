@@ -0,0 +1,46 @@
+package com.yoshio3;
+
+import java.util.Locale;
+
+// Distance metric of the vector search : the SQL operator of pgvector, and the operator class
+// of the index which can be used by the operator.
+// text-embedding-ada-002 returns unit vectors, so the three metrics return the same order ;
+// the negative inner product is the cheapest one (it is only valid for unit vectors).
+public enum DistanceMetric {
+
+    L2("<->", "l2_ops"),
+    COSINE("<=>", "cosine_ops"),
+    INNER_PRODUCT("<#>", "ip_ops");
+
+    private final String operator;
+    private final String operatorClassSuffix;
+
+    DistanceMetric(String operator, String operatorClassSuffix) {
+        this.operator = operator;
+        this.operatorClassSuffix = operatorClassSuffix;
+    }
+
+    public String operator() {
+        return operator;
+    }
+
+    public String operatorClass() {
+        return operatorClass("vector");
+    }
+
+    // Operator class for another type of pgvector ("halfvec" : vector of 2-byte floats)
+    public String operatorClass(String typeName) {
+        return typeName + "_" + operatorClassSuffix;
+    }
+
+    // "l2", "cosine" or "inner_product" (L2 if the name is unknown)
+    public static DistanceMetric fromName(String name) {
+        String normalized = name.trim().toUpperCase(Locale.ROOT).replace('-', '_');
+        for (DistanceMetric metric : values()) {
+            if (metric.name().equals(normalized)) {
+                return metric;
+            }
+        }
+        return L2;
+    }
+}
@@ -0,0 +1,88 @@
+package com.yoshio3;
+
+import com.azure.storage.blob.models.BlobProperties;
+import com.microsoft.azure.functions.ExecutionContext;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+
+// Stores the metadata of each ingested file : the time it was uploaded, and its tags (from the
+// metadata of the blob, e.g. "tags: manual,azure"). The searches of PDF-Summarizer can be
+// limited to the files which match a filter.
+public class DocumentFileStore {
+
+    // Table name of the files (empty : the metadata is not stored)
+    private static final String FILE_TABLE_NAME;
+    // Name of the blob metadata which contains the comma-separated tags of the file
+    private static final String TAGS_METADATA_NAME;
+
+    static {
+        FILE_TABLE_NAME =
+                EnvironmentUtil.getString("AzurePostgresqlDocumentFileTableName", "DOCUMENT_FILE");
+        TAGS_METADATA_NAME = EnvironmentUtil
+                .getString("DocumentTagsMetadataName", "tags").toLowerCase(Locale.ROOT);
+    }
+
+    public boolean isEnabled() {
+        return !FILE_TABLE_NAME.isEmpty();
+    }
+
+    // Save the upload time and the tags of the file (a new version of the file replaces them)
+    public void save(String fileName, BlobProperties properties, ExecutionContext context) {
+        if (!isEnabled() || properties == null) {
+            return;
+        }
+        String upsertSql = "INSERT INTO " + FILE_TABLE_NAME
+                + " (fileName, uploadedAt, tags) VALUES (?, ?, ?)"
+                + " ON CONFLICT (fileName) DO UPDATE SET"
+                + " uploadedAt = EXCLUDED.uploadedAt, tags = EXCLUDED.tags";
+        try (Connection connection = PostgreSQLUtil.getConnection();
+                PreparedStatement upsertStatement = connection.prepareStatement(upsertSql)) {
+            upsertStatement.setString(1, fileName);
+            upsertStatement.setObject(2, properties.getLastModified());
+            upsertStatement.setArray(3,
+                    connection.createArrayOf("text", tags(properties.getMetadata())));
+            upsertStatement.executeUpdate();
+        } catch (SQLException e) {
+            // The file is still ingested (it is only missing from the filtered searches)
+            context.getLogger().warning("Error while saving the metadata of " + fileName + ": "
+                    + e.getMessage());
+        }
+    }
+
+    // Delete the metadata of the file (the blob was deleted)
+    public void delete(String fileName, ExecutionContext context) {
+        if (!isEnabled()) {
+            return;
+        }
+        try (Connection connection = PostgreSQLUtil.getConnection();
+                PreparedStatement deleteStatement = connection.prepareStatement(
+                        "DELETE FROM " + FILE_TABLE_NAME + " WHERE fileName = ?")) {
+            deleteStatement.setString(1, fileName);
+            deleteStatement.executeUpdate();
+        } catch (SQLException e) {
+            context.getLogger().warning("Error while deleting the metadata of " + fileName + ": "
+                    + e.getMessage());
+        }
+    }
+
+    // Tags in lower case, without duplicates (the names of the metadata are case-insensitive)
+    private static String[] tags(Map<String, String> metadata) {
+        if (metadata == null) {
+            return new String[0];
+        }
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            if (entry.getKey().toLowerCase(Locale.ROOT).equals(TAGS_METADATA_NAME)) {
+                return Arrays.stream(entry.getValue().split(","))
+                        .map(tag -> tag.trim().toLowerCase(Locale.ROOT))
+                        .filter(tag -> !tag.isEmpty())
+                        .distinct()
+                        .toArray(String[]::new);
+            }
+        }
+        return new String[0];
+    }
+}
@@ -0,0 +1,239 @@
+package com.yoshio3;
+
+import com.azure.ai.openai.OpenAIClient;
+import com.azure.ai.openai.models.EmbeddingsOptions;
+import com.azure.core.exception.HttpResponseException;
+import com.azure.core.http.rest.RequestOptions;
+import com.azure.core.util.BinaryData;
+import com.microsoft.azure.functions.ExecutionContext;
+import com.yoshio3.models.CosmosDBDocumentStatus;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+// Packs the pending page chunks into multi-input embedding requests (bounded by the number of
+// inputs and the total number of tokens) and passes the resulting rows to the consumer.
+public class EmbeddingBatcher implements AutoCloseable {
+
+    private static final String TEXT_EMBEDDING_ADA = "text-embedding-ada-002";
+    // Maximum number of inputs in one embedding request
+    private static final int MAX_INPUTS_PER_REQUEST;
+    // Maximum number of (estimated) tokens in one embedding request
+    private static final int MAX_TOKENS_PER_REQUEST;
+    //Azure OpenAI call retry count
+    private static final int MAX_OPENAI_INVOCATION_RETRY_COUNT = 3;
+    // Tokens-Per-Minute quota of the text-embedding-ada-002 deployment
+    private static final int TOKENS_PER_MINUTE;
+    // Scale the vectors to unit length before they are stored (for the inner product metric)
+    private static final boolean NORMALIZE_EMBEDDINGS;
+
+    // Rate limiter shared by all embedding calls on the Function host (the quota is per deployment)
+    private static final AdaptiveRateLimiter RATE_LIMITER;
+    // Cache of the vectors shared by all embedding calls on the Function host
+    private static final EmbeddingCache EMBEDDING_CACHE = new EmbeddingCache(TEXT_EMBEDDING_ADA);
+
+    static {
+        MAX_INPUTS_PER_REQUEST =
+                Math.max(1, EnvironmentUtil.getInt("AzureOpenaiEmbeddingMaxInputs", 16));
+        MAX_TOKENS_PER_REQUEST =
+                Math.max(1, EnvironmentUtil.getInt("AzureOpenaiEmbeddingMaxTokens", 60000));
+        TOKENS_PER_MINUTE = EnvironmentUtil.getInt("AzureOpenaiEmbeddingTokensPerMinute", 240000);
+        RATE_LIMITER = new AdaptiveRateLimiter(TOKENS_PER_MINUTE, MAX_TOKENS_PER_REQUEST);
+        NORMALIZE_EMBEDDINGS = EnvironmentUtil.getBoolean("VectorNormalizeEmbeddings", false);
+    }
+
+    private final OpenAIClient client;
+    private final CosmosStatusWriter statusWriter;
+    private final Consumer<VectorRecord> rowConsumer;
+    // Called with the page number of a chunk which could not be embedded
+    private final IntConsumer failedPageConsumer;
+    private final ExecutionContext context;
+    private final List<EmbeddingChunk> pending = new ArrayList<>();
+    private int pendingTokens;
+
+    // Number of embedding requests sent for the file
+    private int requestCount;
+    // Number of chunks found / not found in the embedding cache for the file
+    private int cacheHits;
+    private int cacheMisses;
+
+    public EmbeddingBatcher(OpenAIClient client, CosmosStatusWriter statusWriter,
+            Consumer<VectorRecord> rowConsumer, IntConsumer failedPageConsumer,
+            ExecutionContext context) {
+        this.client = client;
+        this.statusWriter = statusWriter;
+        this.rowConsumer = rowConsumer;
+        this.failedPageConsumer = failedPageConsumer;
+        this.context = context;
+    }
+
+    // Add a chunk, and send the pending chunks first if the chunk does not fit in the request
+    public synchronized void add(EmbeddingChunk chunk) {
+        if (!pending.isEmpty() && (pending.size() + 1 > MAX_INPUTS_PER_REQUEST
+                || pendingTokens + chunk.tokenCount() > MAX_TOKENS_PER_REQUEST)) {
+            flush();
+        }
+        pending.add(chunk);
+        pendingTokens += chunk.tokenCount();
+    }
+
+    // Send all pending chunks with one embedding request
+    public synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<EmbeddingChunk> batch = new ArrayList<>(pending);
+        int batchTokens = pendingTokens;
+        pending.clear();
+        pendingTokens = 0;
+
+        List<float[]> embeddings = embed(batch, batchTokens);
+        for (int i = 0; i < batch.size(); i++) {
+            EmbeddingChunk chunk = batch.get(i);
+            String uuidString = chunk.id().toString();
+            float[] embedding = embeddings.get(i);
+            if (embedding == null) {
+                // Do not add a row without a vector to the batch, otherwise the whole batch fails
+                statusWriter.updateStatus(uuidString, CosmosDBDocumentStatus.FAILED_DB_INSERTION);
+                failedPageConsumer.accept(chunk.pageInfo().pageNumber());
+                continue;
+            }
+            statusWriter.updateStatus(uuidString, CosmosDBDocumentStatus.FINISH_OAI_INVOCATION);
+            if (NORMALIZE_EMBEDDINGS) {
+                // The cache keeps the vectors returned by the model
+                PgVector.normalize(embedding);
+            }
+            PageInfo pageInfo = chunk.pageInfo();
+            rowConsumer.accept(new VectorRecord(chunk.id(), embedding, pageInfo.text(),
+                    chunk.fileName(), pageInfo.pageNumber(), pageInfo.chunkIndex(),
+                    pageInfo.chunkCount()));
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+        context.getLogger().info("Number of embedding requests: " + requestCount);
+        if (EMBEDDING_CACHE.isEnabled()) {
+            context.getLogger().info("Embedding cache hits: " + cacheHits + " misses: "
+                    + cacheMisses + " (host total hits: " + EMBEDDING_CACHE.getHitCount()
+                    + " misses: " + EMBEDDING_CACHE.getMissCount() + ")");
+        }
+    }
+
+    // Take the vectors found in the embedding cache, and invoke the Embedding API only for the
+    // other chunks (which are then stored in the cache)
+    private List<float[]> embed(List<EmbeddingChunk> batch, int batchTokens) {
+        Map<Integer, float[]> cached = EMBEDDING_CACHE.lookup(batch, context);
+        cacheHits += cached.size();
+        cacheMisses += batch.size() - cached.size();
+        if (cached.isEmpty()) {
+            List<float[]> embeddings = invokeTextEmbedding(batch, batchTokens);
+            EMBEDDING_CACHE.store(batch, embeddings, context);
+            return embeddings;
+        }
+
+        List<float[]> embeddings = new ArrayList<>(batch.size());
+        List<EmbeddingChunk> misses = new ArrayList<>();
+        int missTokens = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            embeddings.add(cached.get(i));
+            if (!cached.containsKey(i)) {
+                misses.add(batch.get(i));
+                missTokens += batch.get(i).tokenCount();
+            }
+        }
+        if (!misses.isEmpty()) {
+            List<float[]> missEmbeddings = invokeTextEmbedding(misses, missTokens);
+            EMBEDDING_CACHE.store(misses, missEmbeddings, context);
+            int missIndex = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                if (embeddings.get(i) == null) {
+                    embeddings.set(i, missEmbeddings.get(missIndex++));
+                }
+            }
+        }
+        return embeddings;
+    }
+
+    /**
+     * Invoke Text Embedding (text-embedding-ada-002) for all chunks of the batch.
+     * The returned list has the same order as the batch (null if the vector could not be obtained).
+     * When the call fails, or some inputs are missing in the response, the remaining inputs
+     * are retried together as one batch. The call waits for the shared rate limiter instead
+     * of sleeping for a fixed interval.
+     */
+    private List<float[]> invokeTextEmbedding(List<EmbeddingChunk> batch, int batchTokens) {
+        List<float[]> embeddings = new ArrayList<>(batch.size());
+        List<Integer> remaining = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            embeddings.add(null);
+            remaining.add(i);
+        }
+
+        int retryCount = 0;
+        while (!remaining.isEmpty() && retryCount < MAX_OPENAI_INVOCATION_RETRY_COUNT) {
+            List<String> input = new ArrayList<>(remaining.size());
+            remaining.forEach(index -> input.add(batch.get(index).pageInfo().text()));
+            try {
+                RATE_LIMITER.acquire(remaining.size() == batch.size() ? batchTokens
+                        : remaining.stream().mapToInt(index -> batch.get(index).tokenCount()).sum());
+                // Call OpenAI API
+                requestCount++;
+                var response = client.getEmbeddingsWithResponse(TEXT_EMBEDDING_ADA,
+                        BinaryData.fromObject(new EmbeddingsOptions(input)), new RequestOptions());
+                RATE_LIMITER.onSuccess(response.getHeaders());
+                var result = EmbeddingResponse.parse(response.getValue().toStream());
+                // Obtain usage information (number of tokens used)
+                context.getLogger().info("Number of Inputs: " + input.size()
+                        + " Number of Prompt Token: " + result.promptTokens()
+                        + " Number of Total Token: " + result.totalTokens());
+                // Map the vector arrays back to the chunks by the index of the input
+                List<Integer> missing = new ArrayList<>(remaining);
+                for (Map.Entry<Integer, float[]> item : result.embeddings().entrySet()) {
+                    int index = item.getKey();
+                    if (index < remaining.size()) {
+                        embeddings.set(remaining.get(index), item.getValue());
+                        missing.remove(remaining.get(index));
+                    }
+                }
+                remaining = missing;
+            } catch (HttpResponseException e) {
+                context.getLogger().severe("Error while invoking OpenAI: " + e.getMessage());
+                if (e.getResponse() != null && e.getResponse().getStatusCode() == 429) {
+                    // Slow down all embedding calls, and wait for the time given by Retry-After
+                    RATE_LIMITER.onThrottled(e.getResponse().getHeaders());
+                    context.getLogger().info("Embedding rate is reduced to "
+                            + RATE_LIMITER.getTokensPerMinute() + " tokens/min");
+                } else {
+                    backoff(retryCount);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                context.getLogger().severe("Error while invoking OpenAI: " + e.getMessage());
+                backoff(retryCount);
+            }
+            if (!remaining.isEmpty()) {
+                retryCount++;
+                remaining.forEach(index -> statusWriter.updateStatus(
+                        batch.get(index).id().toString(),
+                        CosmosDBDocumentStatus.RETRY_OAI_INVOCATION));
+            }
+        }
+        return embeddings;
+    }
+
+    // Exponential backoff for errors other than HTTP 429 (1, 2, 4 ... seconds)
+    private void backoff(int retryCount) {
+        try {
+            TimeUnit.SECONDS.sleep(1L << Math.min(retryCount, 5));
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
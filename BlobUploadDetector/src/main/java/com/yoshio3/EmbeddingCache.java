@@ -0,0 +1,183 @@
+package com.yoshio3;
+
+import com.microsoft.azure.functions.ExecutionContext;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Content-addressed cache of the embeddings, stored in a PostgreSQL side table.
+// The key is the SHA-256 hash of (model name, normalized chunk text), so the same text is not
+// embedded again when a file is uploaded again (or another file contains the same page).
+// The least recently used entries are deleted when the number of entries exceeds the limit.
+// Errors of the cache are only logged : the chunks are then embedded as usual.
+public class EmbeddingCache {
+
+    // Enable / disable the embedding cache
+    private static final boolean CACHE_ENABLED;
+    // Table name of the embedding cache
+    private static final String CACHE_TABLE_NAME;
+    // Maximum number of entries in the cache
+    private static final long CACHE_MAX_ENTRIES;
+    // Number of stored entries between two evictions
+    private static final int EVICTION_INTERVAL = 1000;
+
+    static {
+        CACHE_ENABLED = EnvironmentUtil.getBoolean("AzureOpenaiEmbeddingCacheEnabled", true);
+        CACHE_TABLE_NAME = EnvironmentUtil.getString("AzurePostgresqlEmbeddingCacheTableName",
+                "EMBEDDING_CACHE");
+        CACHE_MAX_ENTRIES = EnvironmentUtil.getLong("AzurePostgresqlEmbeddingCacheMaxEntries", 100000);
+    }
+
+    private final String modelName;
+    // Counters for all files processed on the Function host
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong storedSinceEviction = new AtomicLong();
+
+    public EmbeddingCache(String modelName) {
+        this.modelName = modelName;
+    }
+
+    public boolean isEnabled() {
+        return CACHE_ENABLED;
+    }
+
+    // Look up the vectors of the chunks. The returned map contains the cached vectors by the
+    // index of the chunk in the list.
+    public Map<Integer, float[]> lookup(List<EmbeddingChunk> chunks, ExecutionContext context) {
+        Map<Integer, float[]> cached = new HashMap<>();
+        if (!CACHE_ENABLED || chunks.isEmpty()) {
+            return cached;
+        }
+        String[] keys = new String[chunks.size()];
+        for (int i = 0; i < chunks.size(); i++) {
+            keys[i] = contentKey(chunks.get(i).pageInfo().text());
+        }
+        String selectSql = "SELECT content_hash, embedding FROM " + CACHE_TABLE_NAME
+                + " WHERE content_hash = ANY(?)";
+        String touchSql = "UPDATE " + CACHE_TABLE_NAME
+                + " SET last_used = now() WHERE content_hash = ANY(?)";
+        try (Connection connection = PostgreSQLUtil.getConnection()) {
+            Map<String, float[]> vectors = new HashMap<>();
+            try (PreparedStatement selectStatement = connection.prepareStatement(selectSql)) {
+                PgVector.useBinaryResults(selectStatement);
+                selectStatement.setArray(1, connection.createArrayOf("text", keys));
+                try (ResultSet resultSet = selectStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        vectors.put(resultSet.getString(1),
+                                ((PgVector) resultSet.getObject(2)).toArray());
+                    }
+                }
+            }
+            if (!vectors.isEmpty()) {
+                try (PreparedStatement touchStatement = connection.prepareStatement(touchSql)) {
+                    touchStatement.setArray(1, connection.createArrayOf("text",
+                            vectors.keySet().toArray(String[]::new)));
+                    touchStatement.executeUpdate();
+                }
+            }
+            for (int i = 0; i < keys.length; i++) {
+                float[] embedding = vectors.get(keys[i]);
+                if (embedding != null) {
+                    cached.put(i, embedding);
+                }
+            }
+        } catch (SQLException e) {
+            context.getLogger().warning("Error while reading the embedding cache: " + e.getMessage());
+        }
+        hitCount.addAndGet(cached.size());
+        missCount.addAndGet(chunks.size() - cached.size());
+        return cached;
+    }
+
+    // Store the vectors obtained from the Embedding API (entries with a null vector are skipped)
+    public void store(List<EmbeddingChunk> chunks, List<float[]> embeddings,
+            ExecutionContext context) {
+        if (!CACHE_ENABLED) {
+            return;
+        }
+        String insertSql = "INSERT INTO " + CACHE_TABLE_NAME
+                + " (content_hash, model, embedding) VALUES (?, ?, ?)"
+                + " ON CONFLICT (content_hash) DO UPDATE SET last_used = now()";
+        int stored = 0;
+        try (Connection connection = PostgreSQLUtil.getConnection();
+                PreparedStatement insertStatement = connection.prepareStatement(insertSql)) {
+            // The same text may appear more than once in a batch
+            var storedKeys = new HashSet<String>();
+            for (int i = 0; i < chunks.size(); i++) {
+                float[] embedding = embeddings.get(i);
+                String key = contentKey(chunks.get(i).pageInfo().text());
+                if (embedding == null || !storedKeys.add(key)) {
+                    continue;
+                }
+                insertStatement.setString(1, key);
+                insertStatement.setString(2, modelName);
+                insertStatement.setObject(3, new PgVector(embedding));
+                insertStatement.addBatch();
+                stored++;
+            }
+            if (stored > 0) {
+                insertStatement.executeBatch();
+            }
+        } catch (SQLException e) {
+            context.getLogger().warning("Error while writing the embedding cache: " + e.getMessage());
+            return;
+        }
+        if (storedSinceEviction.addAndGet(stored) >= EVICTION_INTERVAL) {
+            storedSinceEviction.set(0);
+            evict(context);
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    // Delete the least recently used entries exceeding the maximum number of entries
+    private void evict(ExecutionContext context) {
+        String deleteSql = "DELETE FROM " + CACHE_TABLE_NAME + " WHERE content_hash IN"
+                + " (SELECT content_hash FROM " + CACHE_TABLE_NAME
+                + " ORDER BY last_used DESC OFFSET ?)";
+        try (Connection connection = PostgreSQLUtil.getConnection();
+                PreparedStatement deleteStatement = connection.prepareStatement(deleteSql)) {
+            deleteStatement.setLong(1, CACHE_MAX_ENTRIES);
+            int deleted = deleteStatement.executeUpdate();
+            if (deleted > 0) {
+                context.getLogger().info("Evicted " + deleted + " entries from the embedding cache");
+            }
+        } catch (SQLException e) {
+            context.getLogger().warning("Error while evicting the embedding cache: " + e.getMessage());
+        }
+    }
+
+    // SHA-256 of the model name and the normalized text (hex string)
+    private String contentKey(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(modelName.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(text.strip().getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder(64);
+            for (byte b : digest.digest()) {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16))
+                        .append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
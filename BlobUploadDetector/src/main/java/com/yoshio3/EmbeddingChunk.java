@@ -0,0 +1,14 @@
+package com.yoshio3;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+public record EmbeddingChunk(UUID id, String fileName, PageInfo pageInfo, int tokenCount) {
+
+    // The id of a chunk is derived from (fileName, pageNumber, chunkIndex), so the rows of a file
+    // are replaced (not duplicated) when the file is uploaded again
+    public static UUID chunkId(String fileName, int pageNumber, int chunkIndex) {
+        return UUID.nameUUIDFromBytes((fileName + "\0" + pageNumber + "\0" + chunkIndex)
+                .getBytes(StandardCharsets.UTF_8));
+    }
+}
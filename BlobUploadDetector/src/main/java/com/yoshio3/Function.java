@@ -2,24 +2,32 @@ package com.yoshio3;
 
 import com.microsoft.azure.functions.annotation.*;
 import com.yoshio3.models.CosmosDBDocumentStatus;
+import com.yoshio3.models.FileFanOut;
+import com.yoshio3.models.IngestionCheckpoint;
+import com.yoshio3.models.PageRangeWorkItem;
 import com.azure.ai.openai.OpenAIClient;
 import com.azure.ai.openai.OpenAIClientBuilder;
-import com.azure.ai.openai.models.EmbeddingsOptions;
 import com.azure.core.credential.AzureKeyCredential;
+import com.azure.storage.blob.models.BlobProperties;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.microsoft.azure.functions.*;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.net.URLEncoder;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.IntStream;
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.text.PDFTextStripper;
 
 
 public class Function {
@@ -28,46 +36,58 @@ public class Function {
     // Azure OpenAI instance URL
     private static final String OPENAI_URL;
 
-    // Azure PostgreSQL JDBC URL
-    private static final String POSTGRESQL_JDBC_URL;
-    // Azure PostgreSQL username
-    private static final String POSTGRESQL_USER;
-    // Azure PostgreSQL password
-    private static final String POSTGRESQL_PASSWORD;
-    // Azure PostgreSQL table name
-    private static final String POSTGRESQL_TABLE_NAME;
-    // Maximum number of characters per page (if exceeded, the page will be split and processed)
-    private static final int MAX_SEPARATE_TOKEN_LENGTH = 7500;
+    // PDF extraction mode : "memory" (Blob Trigger, the whole file is loaded in memory) or
+    // "streaming" (Event Grid Trigger, the file is read as a stream into a temporary file)
+    private static final String PDF_EXTRACTION_MODE;
+    // Number of threads extracting the text of a PDF file
+    private static final int PDF_EXTRACTION_CONCURRENCY;
+    // Fan-out mode : the files with more pages than PdfFanOutRangePages are split into page
+    // ranges, which are processed by ProcessPageRange on all instances
+    private static final boolean PDF_FAN_OUT_ENABLED;
+    // Number of pages of a range
+    private static final int PDF_FAN_OUT_RANGE_PAGES;
+    // Number of deliveries of a range message (the same as maxDequeueCount of host.json)
+    private static final int PDF_FAN_OUT_MAX_DEQUEUE_COUNT;
+    // Queue of the page ranges (the queue name of the bindings must be a constant)
+    private static final String PAGE_RANGE_QUEUE_NAME = "pdf-page-ranges";
+    private static final Gson GSON = new Gson();
     // Azure OpenAI client instance
     private OpenAIClient client;
 
-    // Azure OpenAI call interval (in milliseconds)
-    private final static int OPENAI_INVOCATION_INTERVAL = 20;
-
-    //Azure OpenAI call retry count
-    private static final int MAX_OPENAI_INVOCATION_RETRY_COUNT = 3;
     // Azure Cosmos DB client instance
     CosmosDBUtil cosmosDBUtil;
+    // Azure Blob Storage client instance
+    BlobStorageUtil blobStorageUtil;
+    // Fingerprints of the ingested pages
+    PageFingerprintStore pageFingerprintStore;
+    // ANN index of the embeddings
+    VectorIndexManager vectorIndexManager;
+    // Upload time and tags of the files (for the filtered searches)
+    DocumentFileStore documentFileStore;
 
     static {
         OPENAI_API_KEY = System.getenv("AzureOpenaiApiKey");
         OPENAI_URL = System.getenv("AzureOpenaiUrl");
-
-        POSTGRESQL_JDBC_URL = System.getenv("AzurePostgresqlJdbcurl");
-        POSTGRESQL_USER = System.getenv("AzurePostgresqlUser");
-        POSTGRESQL_PASSWORD = System.getenv("AzurePostgresqlPassword");
-        POSTGRESQL_TABLE_NAME = System.getenv("AzurePostgresqlDbTableName");
+        PDF_EXTRACTION_MODE = EnvironmentUtil.getString("PdfExtractionMode", "memory");
+        PDF_EXTRACTION_CONCURRENCY = EnvironmentUtil.getInt("PdfExtractionConcurrency", 1);
+        PDF_FAN_OUT_ENABLED = EnvironmentUtil.getBoolean("PdfFanOutEnabled", false);
+        PDF_FAN_OUT_RANGE_PAGES = Math.max(1, EnvironmentUtil.getInt("PdfFanOutRangePages", 100));
+        PDF_FAN_OUT_MAX_DEQUEUE_COUNT = EnvironmentUtil.getInt("PdfFanOutMaxDequeueCount", 5);
     }
 
     public Function() {
         client = new OpenAIClientBuilder().credential(new AzureKeyCredential(OPENAI_API_KEY))
                 .endpoint(OPENAI_URL).buildClient();
         cosmosDBUtil = new CosmosDBUtil();
+        blobStorageUtil = new BlobStorageUtil();
+        pageFingerprintStore = new PageFingerprintStore();
+        vectorIndexManager = new VectorIndexManager();
+        documentFileStore = new DocumentFileStore();
     }
 
     // Note:
     // If you change "azure.blobstorage.container.name=pdfs" in applications.properties,
-    // you also need to change the path in @BlobTrigger and @BlobInput. Default value: (pdfs/{name})
+    // you also need to change the path in @BlobTrigger. Default value: (pdfs/{name})
     // The reason is that the values that can be specified in the path are limited to those defined in constants,
     // and cannot be obtained from properties.
     @FunctionName("ProcessUploadedFile")
@@ -76,197 +96,397 @@ public class Function {
             @BlobTrigger(
                     name = "content", path = "pdfs/{name}", dataType = "binary") byte[] content,
             @BindingName("name") String fileName,
-            @BlobInput(name = "inputBlob", path = "pdfs/{name}",
-                    dataType = "binary") byte[] inputBlob,
+            @QueueOutput(name = "pageRanges", queueName = PAGE_RANGE_QUEUE_NAME,
+                    connection = "AzureWebJobsStorage") OutputBinding<List<String>> pageRanges,
             final ExecutionContext context) throws UnsupportedEncodingException {
         String encodedFileName = URLEncoder.encode(fileName, "UTF-8");
         context.getLogger().info(encodedFileName);
 
         if (fileName.endsWith(".pdf")) {
-            var extractPDFtoTextByPage = extractPDFtoTextByPage(content, context);
-            extractPDFtoTextByPage.forEach(pageInfo -> insertDataToPostgreSQL(pageInfo.text(),
-                    context, fileName, pageInfo.pageNumber()));
+            if (isStreamingExtraction()) {
+                context.getLogger().info("Skipped: " + encodedFileName
+                        + " is processed by ProcessUploadedFileEvent (streaming mode)");
+                return;
+            }
+            String blobETag = saveFileProperties(fileName, context);
+            try {
+                if (PDF_FAN_OUT_ENABLED && fanOut(() -> PDDocument.load(content), fileName,
+                        blobETag, pageRanges, context)) {
+                    return;
+                }
+            } catch (IOException e) {
+                context.getLogger()
+                        .severe("Error while reading the pages of the PDF: " + e.getMessage());
+                return;
+            }
+            PageRangeWorkItem wholeFile = PageRangeWorkItem.wholeFile(fileName, blobETag);
+            IngestionCheckpoint checkpoint = readCheckpoint(wholeFile, context);
+            if (checkpoint != null && checkpoint.completed()) {
+                return;
+            }
+            resetPeakHeapUsage();
+            ingestPages(() -> PDDocument.load(content), wholeFile, checkpoint, context);
+            logPeakHeapUsage(encodedFileName, context);
         }
     }
 
-    private List<PageInfo> extractPDFtoTextByPage(byte[] content, ExecutionContext context) {
-        // String pdfFilePath = "/tmp/azure-app-service.pdf";
-        List<PageInfo> allPages = new ArrayList<>();
-
-        try (PDDocument document = PDDocument.load(content)) {
-            // try (PDDocument document = PDDocument.load(new File(pdfFilePath))) {
-            PDFTextStripper textStripper = new PDFTextStripper();
-            int numberOfPages = document.getNumberOfPages();
-
-            // Loop through the number of pages in the PDF file
-            IntStream.rangeClosed(1, numberOfPages).forEach(pageNumber -> {
-                try {
-                    textStripper.setStartPage(pageNumber);
-                    textStripper.setEndPage(pageNumber);
-                    String pageText = textStripper.getText(document);
-                    // Replace newline characters with whitespace
-                    pageText = pageText.replace("\n", " ");
-                    pageText = pageText.replaceAll("\\s{2,}", " ");
+    // Streaming mode : the Event Grid event (Microsoft.Storage.BlobCreated) only contains the name
+    // of the blob, and the PDF file is read as a stream into a temporary file, so the heap usage
+    // does not depend on the size of the file.
+    // In this mode, please disable ProcessUploadedFile (AzureWebJobs.ProcessUploadedFile.Disabled=true)
+    // so that the Blob Trigger does not load the file into memory.
+    // The Microsoft.Storage.BlobDeleted event removes the rows of the file (in both modes).
+    @FunctionName("ProcessUploadedFileEvent")
+    @StorageAccount("AzureWebJobsStorage")
+    public void processBlobEvent(@EventGridTrigger(name = "event") String event,
+            @QueueOutput(name = "pageRanges", queueName = PAGE_RANGE_QUEUE_NAME,
+                    connection = "AzureWebJobsStorage") OutputBinding<List<String>> pageRanges,
+            final ExecutionContext context) throws UnsupportedEncodingException {
+        JsonObject eventJson = JsonParser.parseString(event).getAsJsonObject();
+        String eventType = eventJson.get("eventType").getAsString();
+        String fileName =
+                BlobStorageUtil.getBlobNameFromSubject(eventJson.get("subject").getAsString());
+        if (fileName == null) {
+            return;
+        }
+        String encodedFileName = URLEncoder.encode(fileName, "UTF-8");
+        context.getLogger().info(eventType + ": " + encodedFileName);
+        if ("Microsoft.Storage.BlobDeleted".equals(eventType)) {
+            if (fileName.endsWith(".pdf")) {
+                pageFingerprintStore.deleteFile(fileName, context);
+                documentFileStore.delete(fileName, context);
+                cosmosDBUtil.deleteDocuments(fileName, context);
+            }
+            return;
+        }
+        if (!"Microsoft.Storage.BlobCreated".equals(eventType)) {
+            return;
+        }
 
-                    // If the text on one page exceeds 7500 characters, split it
-                    if (pageText.length() > MAX_SEPARATE_TOKEN_LENGTH) {
-                        context.getLogger().fine("Split text: " + pageText.length());
-                        List<String> splitText = splitText(pageText, MAX_SEPARATE_TOKEN_LENGTH);
-                        splitText.forEach(text -> {
-                            PageInfo pageInfo = new PageInfo(pageNumber, text);
-                            allPages.add(pageInfo);
-                        });
-                    } else {
-                        PageInfo pageInfo = new PageInfo(pageNumber, pageText);
-                        allPages.add(pageInfo);
+        if (fileName.endsWith(".pdf")) {
+            if (!isStreamingExtraction()) {
+                context.getLogger().info("Skipped: " + encodedFileName
+                        + " is processed by ProcessUploadedFile (memory mode)");
+                return;
+            }
+            String blobETag = saveFileProperties(fileName, context);
+            resetPeakHeapUsage();
+            try {
+                if (PDF_FAN_OUT_ENABLED) {
+                    // Only the number of pages is read (the stream is buffered in a temporary file)
+                    try (InputStream inputStream = blobStorageUtil.openInputStream(fileName)) {
+                        if (fanOut(() -> PDDocument.load(inputStream,
+                                MemoryUsageSetting.setupTempFileOnly()), fileName, blobETag,
+                                pageRanges, context)) {
+                            return;
+                        }
                     }
-                } catch (IOException e) {
-                    context.getLogger()
-                            .severe("Error while extracting text from PDF: " + e.getMessage());
-                    e.printStackTrace();
                 }
-            });
-        } catch (IOException e) {
-            context.getLogger().severe("Error while extracting text from PDF: " + e.getMessage());
-            e.printStackTrace();
+                ingestBlob(PageRangeWorkItem.wholeFile(fileName, blobETag), context);
+            } catch (IOException e) {
+                context.getLogger()
+                        .severe("Error while extracting text from PDF: " + e.getMessage());
+                e.printStackTrace();
+            }
+            logPeakHeapUsage(encodedFileName, context);
         }
-        return allPages;
     }
 
-    // Inserting Vector data into PostgreSQL (text-embedding-ada-001)
-    private void insertDataToPostgreSQL(String originText, ExecutionContext context,
-            String fileName, int pageNumber) {
-        UUID uuid = UUID.randomUUID();
-        String uuidString = uuid.toString();
+    // Fan-out mode : processes one page range of a file enqueued by ProcessUploadedFile or
+    // ProcessUploadedFileEvent. The ranges of a file are processed in parallel by all instances.
+    // If a page of the range fails, the invocation fails, so the message is delivered again
+    // (up to maxDequeueCount times) and the range continues from its checkpoint.
+    // The index dropped by the fan-out is built when all ranges are completed or stopped (the
+    // last delivery failed), so a page which can never be extracted does not leave the table
+    // without index.
+    @FunctionName("ProcessPageRange")
+    public void processPageRange(
+            @QueueTrigger(name = "message", queueName = PAGE_RANGE_QUEUE_NAME,
+                    connection = "AzureWebJobsStorage") String message,
+            @BindingName("DequeueCount") long dequeueCount,
+            final ExecutionContext context) throws IOException {
+        PageRangeWorkItem range = GSON.fromJson(message, PageRangeWorkItem.class);
+        context.getLogger().info("Page range " + (range.rangeIndex() + 1) + "/"
+                + range.rangeCount() + " of " + URLEncoder.encode(range.fileName(), "UTF-8")
+                + ": pages " + range.firstPage() + "-" + range.lastPage());
+        // The ranges of an older version (or of a deleted blob) are not processed
+        String blobETag = blobStorageUtil.getETag(range.fileName(), context);
+        if (blobETag == null || !blobETag.equals(range.blobETag())) {
+            context.getLogger().info("Skipped: the blob was changed or deleted (" + blobETag
+                    + ")");
+            return;
+        }
+        boolean committed = false;
         try {
-            cosmosDBUtil
-                    .createDocument(uuidString, fileName,
-                            CosmosDBDocumentStatus.PAGE_SEPARATE_FINISHED, pageNumber, context)
-                    .block();
+            committed = ingestBlob(range, context);
+        } finally {
+            if (!committed && dequeueCount >= PDF_FAN_OUT_MAX_DEQUEUE_COUNT) {
+                // The message goes to the poison queue : the range is not retried
+                context.getLogger().severe("Page range " + (range.rangeIndex() + 1) + " of "
+                        + range.fileName() + " stopped after " + dequeueCount + " deliveries");
+                afterRange(cosmosDBUtil.stopRange(range, context), context);
+            }
+        }
+        if (!committed) {
+            throw new IllegalStateException("Some pages of the range " + range.firstPage() + "-"
+                    + range.lastPage() + " of " + range.fileName() + " are not committed");
+        }
+        afterRange(cosmosDBUtil.completeRange(range, context), context);
+    }
 
-            // Call OpenAI Text Embedding (text-embedding-ada-002) to obtain vector array
-            List<Double> embedding = invokeTextEmbedding(uuidString, originText, context);
-            cosmosDBUtil.updateStatus(uuidString, CosmosDBDocumentStatus.FINISH_OAI_INVOCATION,
-                    context);
+    // Build the index when all ranges of the file are completed or stopped
+    private void afterRange(FileFanOut fanOut, ExecutionContext context) {
+        if (fanOut != null && fanOut.attemptedRanges() >= fanOut.rangeCount()) {
+            vectorIndexManager.afterLoad(context);
+        }
+    }
 
-            // Insert vector array into PostgreSQL
-            var insertSql = "INSERT INTO " + POSTGRESQL_TABLE_NAME
-                    + " (id, embedding, origntext, fileName, pageNumber) VALUES (?, ?::vector, ?, ?, ?)";
-            try (var connection = DriverManager.getConnection(POSTGRESQL_JDBC_URL, POSTGRESQL_USER,
-                    POSTGRESQL_PASSWORD);
-                    PreparedStatement insertStatement = connection.prepareStatement(insertSql)) {
-                insertStatement.setObject(1, uuid);
-                insertStatement.setArray(2,
-                        connection.createArrayOf("double", embedding.toArray()));
-                insertStatement.setString(3, originText);
-                insertStatement.setString(4, fileName);
-                insertStatement.setInt(5, pageNumber);
-                insertStatement.executeUpdate();
-                cosmosDBUtil.updateStatus(uuidString, CosmosDBDocumentStatus.FINISH_DB_INSERTION,
-                        context);
-            }
-            // Sleep to avoid errors when sending a large number of requests (adjustable)
-            sleep();
-        } catch (Exception e) {
-            context.getLogger()
-                    .severe("Error while inserting data to PostgreSQL: " + e.getMessage());
-            cosmosDBUtil.updateStatus(uuidString, CosmosDBDocumentStatus.FAILED_DB_INSERTION,
-                    context);
-            Thread.currentThread().interrupt();
+    // Save the upload time and the tags of the file, and return its ETag (null if the
+    // properties of the blob can not be read)
+    private String saveFileProperties(String fileName, ExecutionContext context) {
+        BlobProperties properties = blobStorageUtil.getProperties(fileName, context);
+        if (properties == null) {
+            return null;
         }
-        cosmosDBUtil.updateStatus(uuidString, CosmosDBDocumentStatus.COMPLETED, context);
+        documentFileStore.save(fileName, properties, context);
+        return properties.getETag();
     }
 
-    /**
-     * Invoke Text Embedding  (text-embedding-ada-002)
-     */
-    private List<Double> invokeTextEmbedding(String uuid, String originalText,
-            ExecutionContext context) {
-        List<Double> embedding = new ArrayList<>();
-        var embeddingsOptions = new EmbeddingsOptions(Arrays.asList(originalText));
+    // Split a large file into page ranges and enqueue them (returns false if the file is small
+    // enough to be processed by this invocation).
+    // If the same version (ETag) of the file was already fanned out (the event was delivered
+    // again), only the ranges which are not completed are enqueued again.
+    private boolean fanOut(PdfDocumentSource documentSource, String fileName, String blobETag,
+            OutputBinding<List<String>> pageRanges, ExecutionContext context) throws IOException {
+        if (blobETag == null) {
+            // The ranges are bound to a version of the blob
+            return false;
+        }
+        int numberOfPages;
+        try (PDDocument document = documentSource.open()) {
+            numberOfPages = document.getNumberOfPages();
+        }
+        int rangeCount = (numberOfPages + PDF_FAN_OUT_RANGE_PAGES - 1) / PDF_FAN_OUT_RANGE_PAGES;
+        if (rangeCount <= 1) {
+            return false;
+        }
+        FileFanOut previous = cosmosDBUtil.readFanOut(fileName, context);
+        boolean sameVersion = previous != null && blobETag.equals(previous.blobETag())
+                && previous.rangeCount() == rangeCount;
+        if (sameVersion && previous.completed()) {
+            context.getLogger().info("Skipped: " + fileName + " (" + blobETag
+                    + ") is already ingested");
+            return true;
+        }
+        if (!sameVersion) {
+            cosmosDBUtil.createFanOut(fileName, blobETag, numberOfPages, rangeCount, context);
+            vectorIndexManager.beforeLoad(fileName, newPages(
+                    pageFingerprintStore.load(fileName, context), 0, numberOfPages), context);
+        }
+        List<String> messages = new ArrayList<>(rangeCount);
+        for (int rangeIndex = 0; rangeIndex < rangeCount; rangeIndex++) {
+            if (sameVersion && previous.completedRanges().containsKey(String.valueOf(rangeIndex))) {
+                continue;
+            }
+            int firstPage = rangeIndex * PDF_FAN_OUT_RANGE_PAGES + 1;
+            int lastPage = Math.min(numberOfPages, firstPage + PDF_FAN_OUT_RANGE_PAGES - 1);
+            messages.add(GSON.toJson(new PageRangeWorkItem(fileName, blobETag, rangeIndex,
+                    rangeCount, firstPage, lastPage)));
+        }
+        pageRanges.setValue(messages);
+        context.getLogger().info("Fan-out: " + fileName + " (" + numberOfPages + " pages) into "
+                + messages.size() + "/" + rangeCount + " page ranges");
+        return true;
+    }
 
-        int retryCount = 0;
-        while (retryCount < MAX_OPENAI_INVOCATION_RETRY_COUNT) {
+    // Read the blob as a stream and ingest the pages of the range (returns true if all pages of
+    // the range are committed)
+    private boolean ingestBlob(PageRangeWorkItem range, ExecutionContext context)
+            throws IOException {
+        IngestionCheckpoint checkpoint = readCheckpoint(range, context);
+        if (checkpoint != null && checkpoint.completed()) {
+            return true;
+        }
+        String fileName = range.fileName();
+        if (PDF_EXTRACTION_CONCURRENCY > 1) {
+            // Each extraction thread opens its own PDDocument, so the blob is downloaded
+            // (as a stream) into a temporary file once
+            Path tempFile = Files.createTempFile("pdf-", ".pdf");
             try {
-                // Call OpenAI API
-                var result = client.getEmbeddings("text-embedding-ada-002", embeddingsOptions);
-                // Obtain usage information (number of tokens used)
-                var usage = result.getUsage();
-                context.getLogger().info("Number of Prompt Token: " + usage.getPromptTokens()
-                        + "Number of Total Token: " + usage.getTotalTokens());
-                // Retrieve vector array
-                var findFirst = result.getData().stream().findFirst();
-                if (findFirst.isPresent()) {
-                    embedding.addAll(findFirst.get().getEmbedding());
-                }
-                break;
-            } catch (Exception e) {
-                context.getLogger().severe("Error while invoking OpenAI: " + e.getMessage());
-                cosmosDBUtil.updateStatus(uuid, CosmosDBDocumentStatus.RETRY_OAI_INVOCATION,
-                        context);
-                retryCount++;
-                retrySleep();
+                blobStorageUtil.getBlobClient(fileName).downloadToFile(tempFile.toString(), true);
+                return ingestPages(() -> PDDocument.load(tempFile.toFile(),
+                        MemoryUsageSetting.setupTempFileOnly()), range, checkpoint, context);
+            } finally {
+                Files.deleteIfExists(tempFile);
             }
         }
-        return embedding;
+        try (InputStream inputStream = blobStorageUtil.openInputStream(fileName)) {
+            return ingestPages(() -> PDDocument.load(inputStream,
+                    MemoryUsageSetting.setupTempFileOnly()), range, checkpoint, context);
+        }
     }
 
-    // The input string is split into approximately 7500-character segments, with divisions occurring at punctuation marks.
-    // Based on experience, splitting at 8000 tokens out of 8192 may cause overflow when issuing commands.
-    private List<String> splitText(String text, int maxLength) {
-        List<String> chunks = new ArrayList<>();
-        int textLength = text.length();
+    // Extract the text of the PDF file page by page (the pages are extracted lazily by the iterator).
+    // If PdfExtractionConcurrency is greater than 1, the pages are extracted by multiple threads.
+    private PageIterator extractPDFtoTextByPage(PdfDocumentSource documentSource,
+            int firstPageNumber, int lastPageNumber, ExecutionContext context) throws IOException {
+        if (PDF_EXTRACTION_CONCURRENCY > 1) {
+            return new ParallelPdfPageIterator(documentSource, firstPageNumber, lastPageNumber,
+                    PDF_EXTRACTION_CONCURRENCY, context);
+        }
+        return new PdfPageIterator(documentSource.open(), firstPageNumber, lastPageNumber,
+                context);
+    }
 
-        while (textLength > maxLength) {
-            int splitIndex = findSplitIndex(text, maxLength);
-            chunks.add(text.substring(0, splitIndex));
-            text = text.substring(splitIndex);
-            textLength = text.length();
+    // Checkpoint of the previous invocation for the same version (ETag) of the blob.
+    // A checkpoint of another version is not used (the changed pages are found by the fingerprints).
+    private IngestionCheckpoint readCheckpoint(PageRangeWorkItem range, ExecutionContext context) {
+        if (range.blobETag() == null) {
+            return null;
+        }
+        IngestionCheckpoint checkpoint = cosmosDBUtil.readCheckpoint(range, context);
+        if (checkpoint == null || !range.blobETag().equals(checkpoint.blobETag())) {
+            return null;
+        }
+        // The ranges of the file were changed (PdfFanOutRangePages)
+        if (!range.isWholeFile() && checkpoint.lastPage() != range.lastPage()) {
+            return null;
         }
-        chunks.add(text);
-        return chunks;
+        if (checkpoint.completed()) {
+            context.getLogger().info("Skipped: " + range.fileName() + " (" + range.blobETag()
+                    + ") pages " + range.firstPage() + "-" + checkpoint.lastPage()
+                    + " are already ingested");
+        } else {
+            context.getLogger().info("Resuming " + range.fileName() + " after page "
+                    + checkpoint.committedPage() + "/" + checkpoint.lastPage() + " ("
+                    + checkpoint.inFlightChunks().size() + " chunks were in flight)");
+        }
+        return checkpoint;
     }
 
-    // The input string is divided into segments of around 7500 characters, with divisions occurring at punctuation marks (such as periods, question marks, and exclamation marks).
-    // If no suitable punctuation is found, the text will simply be split every 7500 characters.
-    private int findSplitIndex(String text, int maxLength) {
-        // Search for punctuation marks within the range of 7200-7500 characters
-        int start = maxLength - 300;
-        int splitIndex = maxLength;
-        while (splitIndex > start) {
-            char c = text.charAt(splitIndex);
-            if (isPunctuation(c)) {
-                break;
+    // Pages are extracted on this thread, while the chunks are embedded (with multi-input
+    // requests) and written to PostgreSQL (in batches) concurrently by the pipeline.
+    // When the file was ingested before, the pages whose text did not change are skipped, and
+    // when a previous invocation stopped, the pages committed by it are not extracted again.
+    // Returns true if all pages of the range are committed.
+    private boolean ingestPages(PdfDocumentSource documentSource, PageRangeWorkItem range,
+            IngestionCheckpoint checkpoint, ExecutionContext context) {
+        String fileName = range.fileName();
+        Map<Integer, String> previousFingerprints = pageFingerprintStore.load(fileName, context);
+        int committedPage = checkpoint == null ? range.firstPage() - 1 : checkpoint.committedPage();
+        int unchangedPages = 0;
+        int updatedPages = 0;
+        try (PageIterator pages = extractPDFtoTextByPage(documentSource, committedPage + 1,
+                range.lastPage(), context)) {
+            // The ranges of a fanned out file are handled by the trigger and the last range
+            if (range.isWholeFile()) {
+                vectorIndexManager.beforeLoad(fileName, newPages(previousFingerprints,
+                        committedPage, pages.getNumberOfPages()), context);
             }
-            splitIndex--;
-        }
-        if (splitIndex == 0) {
-            splitIndex = maxLength;
+            // The checkpointer schedules its checkpoints when it is created : nothing may fail
+            // before it is a resource of the try
+            IngestionCheckpointer checkpointer = new IngestionCheckpointer(range,
+                    pages.getNumberOfPages(), committedPage, cosmosDBUtil, pageFingerprintStore,
+                    context);
+            try (checkpointer;
+                    CosmosStatusWriter statusWriter = cosmosDBUtil.createStatusWriter(context);
+                    var ingestionPipeline =
+                            new IngestionPipeline(client, statusWriter, checkpointer, context)) {
+                // The chunks of a page are returned one after another
+                List<PageInfo> pageChunks = new ArrayList<>();
+                while (pages.hasNext()) {
+                    PageInfo pageChunk = pages.next();
+                    pageChunks.add(pageChunk);
+                    if (pageChunk.chunkIndex() < pageChunk.chunkCount() - 1) {
+                        continue;
+                    }
+                    int pageNumber = pageChunk.pageNumber();
+                    String fingerprint = PageFingerprintStore.fingerprint(pageChunks);
+                    if (fingerprint.equals(previousFingerprints.get(pageNumber))) {
+                        unchangedPages++;
+                        checkpointer.pageUnchanged(pageNumber);
+                    } else {
+                        updatedPages++;
+                        List<String> chunkIds = new ArrayList<>(pageChunks.size());
+                        pageChunks.forEach(chunk -> chunkIds.add(EmbeddingChunk
+                                .chunkId(fileName, pageNumber, chunk.chunkIndex()).toString()));
+                        checkpointer.pageSubmitted(pageNumber, chunkIds, fingerprint);
+                        pageChunks.forEach(chunk -> insertDataToPostgreSQL(chunk, context,
+                                fileName, statusWriter, checkpointer, ingestionPipeline));
+                    }
+                    pageChunks.clear();
+                }
+                checkpointer.extractionFinished();
+            }
+            context.getLogger().info("Unchanged pages: " + unchangedPages + " Updated pages: "
+                    + updatedPages + " Resumed after page: " + committedPage);
+            if (range.isWholeFile() && updatedPages > 0) {
+                vectorIndexManager.afterLoad(context);
+            }
+            return checkpointer.isCompleted();
+        } catch (IOException e) {
+            context.getLogger().severe("Error while extracting text from PDF: " + e.getMessage());
+            e.printStackTrace();
+            return false;
         }
-        return splitIndex;
     }
 
-    // Determination of punctuation marks
-    private boolean isPunctuation(char c) {
-        return c == '.' || c == ':' || c == ';' || c == '?' || c == '!';
+    // Estimated number of rows added by the load of the pages after committedPage : the pages
+    // which have no fingerprint (one chunk per page)
+    private static long newPages(Map<Integer, String> previousFingerprints, int committedPage,
+            int lastPage) {
+        long previousPages = previousFingerprints.keySet().stream()
+                .filter(pageNumber -> pageNumber > committedPage && pageNumber <= lastPage)
+                .count();
+        return Math.max(0, lastPage - committedPage - previousPages);
     }
 
-    private void sleep() {
+    // Inserting Vector data into PostgreSQL (text-embedding-ada-001)
+    // The chunk is registered in Cosmos DB (in the next bulk write), and passed to the pipeline
+    // which invokes OpenAI Text Embedding (text-embedding-ada-002) and inserts the vector into PostgreSQL
+    private void insertDataToPostgreSQL(PageInfo pageInfo, ExecutionContext context,
+            String fileName, CosmosStatusWriter statusWriter, IngestionCheckpointer checkpointer,
+            IngestionPipeline ingestionPipeline) {
+        UUID uuid = EmbeddingChunk.chunkId(fileName, pageInfo.pageNumber(), pageInfo.chunkIndex());
+        String uuidString = uuid.toString();
         try {
-            TimeUnit.MILLISECONDS.sleep(OPENAI_INVOCATION_INTERVAL);
-        } catch (InterruptedException interruptedException) {
-            interruptedException.printStackTrace();
+            statusWriter.createDocument(uuidString, fileName,
+                    CosmosDBDocumentStatus.PAGE_SEPARATE_FINISHED, pageInfo.pageNumber());
+            ingestionPipeline.submit(
+                    new EmbeddingChunk(uuid, fileName, pageInfo, pageInfo.tokenCount()));
+        } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+            statusWriter.updateStatus(uuidString, CosmosDBDocumentStatus.FAILED_DB_INSERTION);
+            checkpointer.pageFailed(pageInfo.pageNumber());
+        } catch (Exception e) {
+            context.getLogger()
+                    .severe("Error while inserting data to PostgreSQL: " + e.getMessage());
+            statusWriter.updateStatus(uuidString, CosmosDBDocumentStatus.FAILED_DB_INSERTION);
+            checkpointer.pageFailed(pageInfo.pageNumber());
         }
     }
 
-    private void retrySleep() {
-        try {
-            TimeUnit.SECONDS.sleep(10);
-        } catch (InterruptedException interruptedException) {
-            interruptedException.printStackTrace();
-            Thread.currentThread().interrupt();
+    private boolean isStreamingExtraction() {
+        return "streaming".equalsIgnoreCase(PDF_EXTRACTION_MODE);
+    }
+
+    // The peak heap usage is shared by all invocations running on the Function host
+    private void resetPeakHeapUsage() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
         }
     }
 
+    private void logPeakHeapUsage(String fileName, ExecutionContext context) {
+        long peakHeapBytes = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakHeapBytes += pool.getPeakUsage().getUsed();
+            }
+        }
+        context.getLogger().info("Peak heap usage while processing " + fileName + " ("
+                + PDF_EXTRACTION_MODE + "): " + peakHeapBytes / (1024 * 1024) + " MB");
+    }
 }
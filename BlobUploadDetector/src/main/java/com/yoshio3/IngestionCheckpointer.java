@@ -0,0 +1,219 @@
+package com.yoshio3;
+
+import com.microsoft.azure.functions.ExecutionContext;
+import com.yoshio3.models.IngestionCheckpoint;
+import com.yoshio3.models.PageRangeWorkItem;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Records the progress of the ingestion of one file (or one page range of a file), so that an invocation which is started
+// again (the Function host was recycled, or the event was delivered again) continues where
+// the previous one stopped.
+// A page is committed when all its chunks are written to PostgreSQL (or its text did not change).
+// Periodically, the fingerprints of the committed pages are saved, and the checkpoint (the highest
+// page up to which all pages are committed, and the chunks in flight) is written to Cosmos DB.
+public class IngestionCheckpointer implements AutoCloseable {
+
+    // Interval (in milliseconds) between two checkpoints
+    private static final long CHECKPOINT_INTERVAL_MILLIS;
+
+    // Timer shared by all checkpointers on the Function host
+    private static final ScheduledExecutorService CHECKPOINT_SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ingestion-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    static {
+        CHECKPOINT_INTERVAL_MILLIS =
+                Math.max(1000, EnvironmentUtil.getLong("IngestionCheckpointIntervalMillis", 10000));
+    }
+
+    // Progress of a page which is not covered by the checkpoint yet
+    private static final class PageProgress {
+        // Fingerprint to save when the page is committed (null : nothing to save)
+        private String fingerprint;
+        private final Set<String> pendingChunks;
+        private boolean failed;
+
+        private PageProgress(String fingerprint, Set<String> pendingChunks) {
+            this.fingerprint = fingerprint;
+            this.pendingChunks = pendingChunks;
+        }
+
+        private boolean isCommitted() {
+            return pendingChunks.isEmpty() && !failed;
+        }
+    }
+
+    private final String checkpointId;
+    private final String fileName;
+    private final String blobETag;
+    // Last page of the range (the number of pages for a whole file)
+    private final int lastPage;
+    private final int numberOfPages;
+    private final CosmosDBUtil cosmosDBUtil;
+    private final PageFingerprintStore pageFingerprintStore;
+    private final ExecutionContext context;
+    private final ScheduledFuture<?> checkpointTask;
+    // Serializes the checkpoints (the I/O is done without holding the lock of the progress)
+    private final Object checkpointLock = new Object();
+
+    // Pages after committedPage, by page number
+    private final TreeMap<Integer, PageProgress> pages = new TreeMap<>();
+    private int committedPage;
+    // Highest page number registered so far
+    private int lastRegisteredPage;
+    private boolean extractionFinished;
+    private volatile boolean completed;
+
+    // committedPage : the pages up to this page were committed by a previous invocation (or are
+    // before the range)
+    public IngestionCheckpointer(PageRangeWorkItem range, int numberOfPages, int committedPage,
+            CosmosDBUtil cosmosDBUtil, PageFingerprintStore pageFingerprintStore,
+            ExecutionContext context) {
+        this.checkpointId = CosmosDBUtil.checkpointId(range);
+        this.fileName = range.fileName();
+        this.blobETag = range.blobETag();
+        this.lastPage = Math.min(range.lastPage(), numberOfPages);
+        this.numberOfPages = numberOfPages;
+        this.committedPage = committedPage;
+        this.lastRegisteredPage = committedPage;
+        this.cosmosDBUtil = cosmosDBUtil;
+        this.pageFingerprintStore = pageFingerprintStore;
+        this.context = context;
+        checkpointTask = CHECKPOINT_SCHEDULER.scheduleWithFixedDelay(this::checkpointQuietly,
+                CHECKPOINT_INTERVAL_MILLIS, CHECKPOINT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // The page is submitted to the pipeline (please call it before the chunks are submitted)
+    public synchronized void pageSubmitted(int pageNumber, List<String> chunkIds,
+            String fingerprint) {
+        registerPage(pageNumber, new PageProgress(fingerprint, new HashSet<>(chunkIds)));
+    }
+
+    // The text of the page did not change since the previous ingestion
+    public synchronized void pageUnchanged(int pageNumber) {
+        registerPage(pageNumber, new PageProgress(null, Set.of()));
+    }
+
+    public synchronized void chunkWritten(VectorRecord row) {
+        PageProgress page = pages.get(row.pageNumber());
+        if (page != null) {
+            page.pendingChunks.remove(row.id().toString());
+        }
+    }
+
+    // A chunk of the page could not be embedded or written : the page is never committed by this
+    // invocation, so it is processed again by the next one
+    public synchronized void pageFailed(int pageNumber) {
+        PageProgress page = pages.get(pageNumber);
+        if (page != null) {
+            page.failed = true;
+        }
+    }
+
+    // All pages were extracted (the pages which were not registered could not be extracted, and
+    // are processed again by the next invocation)
+    public synchronized void extractionFinished() {
+        registerSkippedPages(lastPage + 1);
+        extractionFinished = true;
+    }
+
+    // All pages of the range are committed (known after close)
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    // Write the last checkpoint. The file is completed if all pages are committed.
+    @Override
+    public void close() {
+        checkpointTask.cancel(false);
+        checkpointQuietly();
+    }
+
+    private void registerPage(int pageNumber, PageProgress pageProgress) {
+        registerSkippedPages(pageNumber);
+        pages.put(pageNumber, pageProgress);
+        lastRegisteredPage = Math.max(lastRegisteredPage, pageNumber);
+    }
+
+    // The pages between the registered pages could not be extracted (the error may be transient) :
+    // they are failed, so the checkpoint stops before them and the next invocation extracts them
+    private void registerSkippedPages(int nextPageNumber) {
+        for (int skipped = lastRegisteredPage + 1; skipped < nextPageNumber; skipped++) {
+            PageProgress page = new PageProgress(null, Set.of());
+            page.failed = true;
+            pages.putIfAbsent(skipped, page);
+        }
+        lastRegisteredPage = Math.max(lastRegisteredPage, nextPageNumber - 1);
+    }
+
+    private void checkpoint() throws SQLException {
+        synchronized (checkpointLock) {
+            Map<Integer, String> fingerprints = new HashMap<>();
+            List<String> inFlightChunks = new ArrayList<>();
+            int newCommittedPage;
+            boolean last;
+            synchronized (this) {
+                // Fingerprints of all committed pages (also the pages after a page in flight)
+                for (Map.Entry<Integer, PageProgress> entry : pages.entrySet()) {
+                    PageProgress page = entry.getValue();
+                    if (page.isCommitted() && page.fingerprint != null) {
+                        fingerprints.put(entry.getKey(), page.fingerprint);
+                    }
+                    inFlightChunks.addAll(page.pendingChunks);
+                }
+                newCommittedPage = committedPage;
+                for (Map.Entry<Integer, PageProgress> entry : pages.entrySet()) {
+                    if (entry.getKey() != newCommittedPage + 1 || !entry.getValue().isCommitted()) {
+                        break;
+                    }
+                    newCommittedPage++;
+                }
+                last = extractionFinished && checkpointTask.isCancelled();
+            }
+
+            // The checkpoint must not cover pages whose fingerprints are not saved
+            pageFingerprintStore.save(fileName, fingerprints);
+            synchronized (this) {
+                fingerprints.keySet().forEach(pageNumber -> pages.get(pageNumber).fingerprint = null);
+                pages.headMap(newCommittedPage, true).clear();
+                committedPage = newCommittedPage;
+            }
+            // The pages after the end of the file are removed by the range which ends the file
+            if (last && lastPage == numberOfPages) {
+                pageFingerprintStore.deleteRemovedPages(fileName, numberOfPages, context);
+            }
+            completed = last && newCommittedPage >= lastPage;
+            if (blobETag != null) {
+                cosmosDBUtil.saveCheckpoint(new IngestionCheckpoint(checkpointId, fileName,
+                        IngestionCheckpoint.DOCUMENT_TYPE, blobETag, newCommittedPage, lastPage,
+                        numberOfPages, inFlightChunks, completed), context);
+            }
+        }
+    }
+
+    private void checkpointQuietly() {
+        try {
+            checkpoint();
+        } catch (SQLException e) {
+            // The committed pages are not recorded until the fingerprints are saved
+            context.getLogger()
+                    .severe("Error while saving the page fingerprints: " + e.getMessage());
+        } catch (RuntimeException e) {
+            context.getLogger().severe("Error while writing the checkpoint: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.yoshio3;
+
+import com.azure.ai.openai.OpenAIClient;
+import com.microsoft.azure.functions.ExecutionContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Staged pipeline for one file : PDF text extraction -> embedding -> PostgreSQL writes.
+// The stages are connected by bounded queues, so a slow stage applies back pressure to the
+// previous one, and each stage runs with its own (configurable) number of threads.
+// The extraction stage is the thread which calls submit().
+public class IngestionPipeline implements AutoCloseable {
+
+    // Number of threads calling the Embedding API
+    private static final int EMBEDDING_CONCURRENCY;
+    // Number of threads writing to PostgreSQL
+    private static final int WRITER_CONCURRENCY;
+    // Capacity of the queues between the stages
+    private static final int QUEUE_CAPACITY;
+    // Time to wait for the next element before the pending batch is sent
+    private static final long POLL_MILLIS = 200;
+
+    // Markers to tell the workers that there are no more elements
+    private static final EmbeddingChunk END_OF_CHUNKS = new EmbeddingChunk(null, null, null, 0);
+    private static final VectorRecord END_OF_ROWS = new VectorRecord(null, null, null, null, 0, 0, 0);
+
+    static {
+        EMBEDDING_CONCURRENCY =
+                Math.max(1, EnvironmentUtil.getInt("AzureOpenaiEmbeddingConcurrency", 4));
+        WRITER_CONCURRENCY =
+                Math.max(1, EnvironmentUtil.getInt("AzurePostgresqlWriterConcurrency", 2));
+        QUEUE_CAPACITY = Math.max(1, EnvironmentUtil.getInt("PipelineQueueCapacity", 64));
+    }
+
+    private final OpenAIClient client;
+    private final CosmosStatusWriter statusWriter;
+    private final ExecutionContext context;
+    private final BlockingQueue<EmbeddingChunk> chunkQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<VectorRecord> rowQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ExecutorService embeddingExecutor;
+    private final ExecutorService writerExecutor;
+    private final List<Future<?>> embeddingWorkers = new ArrayList<>();
+    private final List<Future<?>> writerWorkers = new ArrayList<>();
+    // Progress of the pages (committed / failed chunks)
+    private final IngestionCheckpointer checkpointer;
+
+    public IngestionPipeline(OpenAIClient client, CosmosStatusWriter statusWriter,
+            IngestionCheckpointer checkpointer, ExecutionContext context) {
+        this.client = client;
+        this.statusWriter = statusWriter;
+        this.checkpointer = checkpointer;
+        this.context = context;
+        embeddingExecutor = Executors.newFixedThreadPool(EMBEDDING_CONCURRENCY,
+                namedThreadFactory("embedding"));
+        writerExecutor = Executors.newFixedThreadPool(WRITER_CONCURRENCY,
+                namedThreadFactory("postgresql-writer"));
+        for (int i = 0; i < EMBEDDING_CONCURRENCY; i++) {
+            embeddingWorkers.add(embeddingExecutor.submit(this::runEmbeddingWorker));
+        }
+        for (int i = 0; i < WRITER_CONCURRENCY; i++) {
+            writerWorkers.add(writerExecutor.submit(this::runWriterWorker));
+        }
+    }
+
+    // Pass an extracted chunk to the embedding stage (blocks while the queue is full)
+    public void submit(EmbeddingChunk chunk) throws InterruptedException {
+        chunkQueue.put(chunk);
+    }
+
+    // Wait until all submitted chunks are embedded and written to PostgreSQL
+    @Override
+    public void close() {
+        try {
+            for (int i = 0; i < EMBEDDING_CONCURRENCY; i++) {
+                chunkQueue.put(END_OF_CHUNKS);
+            }
+            awaitWorkers(embeddingWorkers);
+            for (int i = 0; i < WRITER_CONCURRENCY; i++) {
+                rowQueue.put(END_OF_ROWS);
+            }
+            awaitWorkers(writerWorkers);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            embeddingExecutor.shutdownNow();
+            writerExecutor.shutdownNow();
+        }
+    }
+
+    // Embedding stage : pack the chunks into multi-input requests
+    private void runEmbeddingWorker() {
+        try (var embeddingBatcher =
+                new EmbeddingBatcher(client, statusWriter, this::putRow, checkpointer::pageFailed,
+                        context)) {
+            while (true) {
+                EmbeddingChunk chunk = chunkQueue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (chunk == END_OF_CHUNKS) {
+                    break;
+                }
+                try {
+                    if (chunk == null) {
+                        // No more chunks for now : do not keep the pending chunks waiting
+                        embeddingBatcher.flush();
+                    } else {
+                        embeddingBatcher.add(chunk);
+                    }
+                } catch (RuntimeException e) {
+                    context.getLogger().severe("Error in embedding stage: " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Writer stage : buffer the rows and write them in batches
+    private void runWriterWorker() {
+        try (var vectorBatchWriter = new VectorBatchWriter(statusWriter,
+                checkpointer::chunkWritten, checkpointer::pageFailed, context)) {
+            while (true) {
+                VectorRecord row = rowQueue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (row == END_OF_ROWS) {
+                    break;
+                }
+                try {
+                    if (row == null) {
+                        vectorBatchWriter.flushIfExpired();
+                    } else {
+                        vectorBatchWriter.add(row);
+                    }
+                } catch (RuntimeException e) {
+                    context.getLogger().severe("Error in PostgreSQL writer stage: " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void putRow(VectorRecord row) {
+        try {
+            rowQueue.put(row);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the writer stage", e);
+        }
+    }
+
+    private void awaitWorkers(List<Future<?>> workers) throws InterruptedException {
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            } catch (ExecutionException e) {
+                context.getLogger().severe("Pipeline worker failed: " + e.getCause());
+            }
+        }
+    }
+
+    private static ThreadFactory namedThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
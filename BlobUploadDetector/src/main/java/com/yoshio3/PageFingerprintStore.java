@@ -0,0 +1,158 @@
+package com.yoshio3;
+
+import com.microsoft.azure.functions.ExecutionContext;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Stores the fingerprint (SHA-256 of the text) of each page of the ingested files.
+// When a file is uploaded again, only the pages whose fingerprint changed are embedded and
+// written again. It also removes the rows of the pages which no longer exist, and of the
+// deleted files.
+public class PageFingerprintStore {
+
+    // Azure PostgreSQL table name
+    private static final String POSTGRESQL_TABLE_NAME;
+    // Table name of the page fingerprints
+    private static final String FINGERPRINT_TABLE_NAME;
+
+    static {
+        POSTGRESQL_TABLE_NAME = System.getenv("AzurePostgresqlDbTableName");
+        FINGERPRINT_TABLE_NAME = EnvironmentUtil.getString(
+                "AzurePostgresqlPageFingerprintTableName", "PAGE_FINGERPRINT");
+    }
+
+    // Fingerprints of the pages of the file stored by the previous ingestion (by page number)
+    public Map<Integer, String> load(String fileName, ExecutionContext context) {
+        Map<Integer, String> fingerprints = new HashMap<>();
+        String selectSql = "SELECT pageNumber, fingerprint FROM " + FINGERPRINT_TABLE_NAME
+                + " WHERE fileName = ?";
+        try (Connection connection = PostgreSQLUtil.getConnection();
+                PreparedStatement selectStatement = connection.prepareStatement(selectSql)) {
+            selectStatement.setString(1, fileName);
+            try (ResultSet resultSet = selectStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    fingerprints.put(resultSet.getInt(1), resultSet.getString(2));
+                }
+            }
+        } catch (SQLException e) {
+            // All pages are processed again
+            context.getLogger()
+                    .warning("Error while reading the page fingerprints: " + e.getMessage());
+        }
+        return fingerprints;
+    }
+
+    // Save the fingerprints of the committed pages
+    public void save(String fileName, Map<Integer, String> fingerprints) throws SQLException {
+        if (fingerprints.isEmpty()) {
+            return;
+        }
+        String upsertSql = "INSERT INTO " + FINGERPRINT_TABLE_NAME
+                + " (fileName, pageNumber, fingerprint) VALUES (?, ?, ?)"
+                + " ON CONFLICT (fileName, pageNumber) DO UPDATE SET"
+                + " fingerprint = EXCLUDED.fingerprint";
+        try (Connection connection = PostgreSQLUtil.getConnection();
+                PreparedStatement upsertStatement = connection.prepareStatement(upsertSql)) {
+            for (Map.Entry<Integer, String> fingerprint : fingerprints.entrySet()) {
+                upsertStatement.setString(1, fileName);
+                upsertStatement.setInt(2, fingerprint.getKey());
+                upsertStatement.setString(3, fingerprint.getValue());
+                upsertStatement.addBatch();
+            }
+            upsertStatement.executeBatch();
+        }
+    }
+
+    // Delete the rows and fingerprints of the pages after the last page (the new file has
+    // fewer pages) in one transaction
+    public void deleteRemovedPages(String fileName, int numberOfPages, ExecutionContext context) {
+        try (Connection connection = PostgreSQLUtil.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                int deletedRows = deletePagesAfter(connection, fileName, numberOfPages);
+                connection.commit();
+                if (deletedRows > 0) {
+                    context.getLogger().info("Deleted " + deletedRows
+                            + " rows of the removed pages (after page " + numberOfPages + ")");
+                }
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            context.getLogger()
+                    .severe("Error while deleting the removed pages: " + e.getMessage());
+        }
+    }
+
+    // Delete all rows and fingerprints of the file (the blob was deleted)
+    public void deleteFile(String fileName, ExecutionContext context) {
+        try (Connection connection = PostgreSQLUtil.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                int deletedRows = deletePagesAfter(connection, fileName, 0);
+                connection.commit();
+                context.getLogger().info("Deleted " + deletedRows + " rows of " + fileName);
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            context.getLogger()
+                    .severe("Error while deleting the rows of " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    // Fingerprint of a page : SHA-256 of the text of all chunks (hex string)
+    public static String fingerprint(List<PageInfo> pageChunks) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (PageInfo pageChunk : pageChunks) {
+                digest.update(pageChunk.text().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            StringBuilder fingerprint = new StringBuilder(64);
+            for (byte b : digest.digest()) {
+                fingerprint.append(Character.forDigit((b >> 4) & 0xF, 16))
+                        .append(Character.forDigit(b & 0xF, 16));
+            }
+            return fingerprint.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Delete the rows and fingerprints of the pages after the page number
+    // (returns the number of deleted rows)
+    private static int deletePagesAfter(Connection connection, String fileName,
+            int afterPageNumber) throws SQLException {
+        deleteRows(connection, FINGERPRINT_TABLE_NAME, fileName, afterPageNumber);
+        int deletedRows = deleteRows(connection, POSTGRESQL_TABLE_NAME, fileName, afterPageNumber);
+        if (deletedRows > 0) {
+            PostgreSQLUtil.notifyChange(connection, fileName);
+        }
+        return deletedRows;
+    }
+
+    private static int deleteRows(Connection connection, String tableName, String fileName,
+            int afterPageNumber) throws SQLException {
+        String deleteSql = "DELETE FROM " + tableName + " WHERE fileName = ? AND pageNumber > ?";
+        try (PreparedStatement deleteStatement = connection.prepareStatement(deleteSql)) {
+            deleteStatement.setString(1, fileName);
+            deleteStatement.setInt(2, afterPageNumber);
+            return deleteStatement.executeUpdate();
+        }
+    }
+}
@@ -1,3 +1,5 @@
 package com.yoshio3;
 
-public record PageInfo (int pageNumber, String text) {}
+// One chunk of a page (chunkIndex : 0 .. chunkCount - 1)
+public record PageInfo (int pageNumber, int chunkIndex, int chunkCount, String text,
+        int tokenCount) {}
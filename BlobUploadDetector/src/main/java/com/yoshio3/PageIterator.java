@@ -0,0 +1,13 @@
+package com.yoshio3;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+// Iterator over the (split) pages of a PDF document, in page order
+public interface PageIterator extends Iterator<PageInfo>, AutoCloseable {
+
+    int getNumberOfPages();
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,36 @@
+package com.yoshio3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+
+// Extracts, normalizes and splits the text of one page.
+// PDFTextStripper is not thread-safe, so please use one instance per thread (and per PDDocument).
+public class PageTextExtractor {
+
+    private final PDFTextStripper textStripper;
+    private final TextNormalizer textNormalizer = new TextNormalizer();
+    private final TextChunker textChunker = TextChunker.create();
+
+    public PageTextExtractor() throws IOException {
+        textStripper = new PDFTextStripper();
+    }
+
+    public List<PageInfo> extract(PDDocument document, int pageNumber) throws IOException {
+        textStripper.setStartPage(pageNumber);
+        textStripper.setEndPage(pageNumber);
+        // Replace newline characters and multiple whitespaces with a single whitespace
+        String pageText = textNormalizer.normalize(textStripper.getText(document));
+
+        // If the text on one page exceeds the limit of a chunk, split it
+        List<TextChunk> chunks = textChunker.split(pageText);
+        List<PageInfo> pages = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            TextChunk chunk = chunks.get(i);
+            pages.add(new PageInfo(pageNumber, i, chunks.size(), chunk.text(), chunk.tokenCount()));
+        }
+        return pages;
+    }
+}
@@ -0,0 +1,174 @@
+package com.yoshio3;
+
+import com.microsoft.azure.functions.ExecutionContext;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+// Extracts the text of a PDF document with multiple threads.
+// The page range is divided into shards of a few pages, and each thread extracts the shards with
+// its own PDDocument / PDFTextStripper instance (PDFBox is not thread-safe). The pages are
+// returned in page order, and the threads only run a limited number of shards ahead of the
+// consumer, so the memory usage stays bounded.
+public class ParallelPdfPageIterator implements PageIterator {
+
+    // Number of pages per shard
+    private static final int SHARD_PAGES;
+
+    static {
+        SHARD_PAGES = Math.max(1, EnvironmentUtil.getInt("PdfExtractionShardPages", 8));
+    }
+
+    private final ExecutionContext context;
+    private final int numberOfPages;
+    private final int firstPageNumber;
+    private final int lastPageNumber;
+    private final int shardCount;
+    private final int concurrency;
+    // Extraction results of the shards (cleared when the consumer has taken them)
+    private final AtomicReferenceArray<CompletableFuture<List<PageInfo>>> shards;
+    // Next shard to be extracted by a worker
+    private final AtomicInteger nextShard = new AtomicInteger();
+    // Number of shards the workers may extract ahead of the consumer
+    private final Semaphore aheadPermits;
+    private final AtomicInteger liveWorkers = new AtomicInteger();
+    private final ExecutorService executor;
+    // Chunks of the current shard which are not returned yet
+    private final Deque<PageInfo> pendingChunks = new ArrayDeque<>();
+    private int currentShard;
+    private volatile boolean closed;
+    private final long startNanos = System.nanoTime();
+
+    // Only the pages from firstPageNumber to lastPageNumber are extracted (the pages before were
+    // committed by a previous invocation, or the range is a work item of a larger file)
+    public ParallelPdfPageIterator(PdfDocumentSource documentSource, int firstPageNumber,
+            int lastPageNumber, int concurrency, ExecutionContext context) throws IOException {
+        this.context = context;
+        PDDocument firstDocument = documentSource.open();
+        this.numberOfPages = firstDocument.getNumberOfPages();
+        this.firstPageNumber = Math.max(1, firstPageNumber);
+        this.lastPageNumber = Math.min(numberOfPages, lastPageNumber);
+        this.shardCount =
+                Math.max(0, (this.lastPageNumber - this.firstPageNumber + SHARD_PAGES) / SHARD_PAGES);
+        this.concurrency = Math.max(1, Math.min(concurrency, shardCount));
+        this.aheadPermits = new Semaphore(this.concurrency * 2);
+        this.shards = new AtomicReferenceArray<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards.set(i, new CompletableFuture<>());
+        }
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(this.concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "pdf-extraction-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        liveWorkers.set(this.concurrency);
+        // The first worker uses the document which was opened to count the pages
+        executor.submit(() -> runWorker(documentSource, firstDocument));
+        for (int i = 1; i < this.concurrency; i++) {
+            executor.submit(() -> runWorker(documentSource, null));
+        }
+    }
+
+    @Override
+    public int getNumberOfPages() {
+        return numberOfPages;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (pendingChunks.isEmpty() && currentShard < shardCount) {
+            try {
+                pendingChunks.addAll(shards.get(currentShard).join());
+            } catch (CompletionException e) {
+                context.getLogger().severe("Error while extracting text from PDF: "
+                        + e.getCause().getMessage());
+            }
+            shards.set(currentShard, null);
+            currentShard++;
+            aheadPermits.release();
+        }
+        return !pendingChunks.isEmpty();
+    }
+
+    @Override
+    public PageInfo next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return pendingChunks.poll();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        aheadPermits.release(concurrency);
+        executor.shutdownNow();
+        long elapsedNanos = System.nanoTime() - startNanos;
+        int extractedPages = Math.max(0, lastPageNumber - firstPageNumber + 1);
+        context.getLogger().info("Extracted " + extractedPages + " pages with " + concurrency
+                + " threads : " + extractedPages * TimeUnit.SECONDS.toNanos(1)
+                        / Math.max(1, elapsedNanos) + " pages/sec");
+    }
+
+    private void runWorker(PdfDocumentSource documentSource, PDDocument openedDocument) {
+        try (PDDocument document =
+                openedDocument != null ? openedDocument : documentSource.open()) {
+            PageTextExtractor pageTextExtractor = new PageTextExtractor();
+            while (!closed) {
+                aheadPermits.acquire();
+                int shard = nextShard.getAndIncrement();
+                if (shard >= shardCount || closed) {
+                    break;
+                }
+                extractShard(document, pageTextExtractor, shard);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            context.getLogger().severe("Error while extracting text from PDF: " + e.getMessage());
+        } finally {
+            // If all workers stopped, do not let the consumer wait for the remaining shards
+            if (liveWorkers.decrementAndGet() == 0) {
+                for (int i = 0; i < shardCount; i++) {
+                    CompletableFuture<List<PageInfo>> future = shards.get(i);
+                    if (future != null) {
+                        future.complete(List.of());
+                    }
+                }
+            }
+        }
+    }
+
+    private void extractShard(PDDocument document, PageTextExtractor pageTextExtractor,
+            int shard) {
+        int firstPage = firstPageNumber + shard * SHARD_PAGES;
+        int lastPage = Math.min(lastPageNumber, firstPage + SHARD_PAGES - 1);
+        List<PageInfo> pages = new ArrayList<>();
+        for (int pageNumber = firstPage; pageNumber <= lastPage; pageNumber++) {
+            try {
+                pages.addAll(pageTextExtractor.extract(document, pageNumber));
+            } catch (IOException e) {
+                context.getLogger()
+                        .severe("Error while extracting text from PDF: " + e.getMessage());
+            }
+        }
+        CompletableFuture<List<PageInfo>> future = shards.get(shard);
+        if (future != null) {
+            future.complete(pages);
+        }
+    }
+}
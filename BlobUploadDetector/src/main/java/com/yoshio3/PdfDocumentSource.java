@@ -0,0 +1,11 @@
+package com.yoshio3;
+
+import java.io.IOException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+// Opens a new PDDocument instance of the same PDF file (PDDocument is not thread-safe,
+// so each extraction thread needs its own instance)
+@FunctionalInterface
+public interface PdfDocumentSource {
+    PDDocument open() throws IOException;
+}
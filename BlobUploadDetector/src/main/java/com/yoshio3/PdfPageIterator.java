@@ -0,0 +1,81 @@
+package com.yoshio3;
+
+import com.microsoft.azure.functions.ExecutionContext;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+// Extracts the text of a PDF document lazily, one page at a time.
+// Only the chunks of the current page are kept in memory, so the extracted text of the
+// whole document is never held at once.
+public class PdfPageIterator implements PageIterator {
+
+    private final PDDocument document;
+    private final ExecutionContext context;
+    private final PageTextExtractor pageTextExtractor;
+    private final int numberOfPages;
+    // Chunks of the current page which are not returned yet
+    private final Deque<PageInfo> pendingChunks = new ArrayDeque<>();
+    private final int firstPageNumber;
+    private final int lastPageNumber;
+    private int nextPageNumber;
+    // Time spent in the text extraction (used to report pages/sec)
+    private long extractionNanos;
+
+    // Only the pages from firstPageNumber to lastPageNumber are extracted (the pages before were
+    // committed by a previous invocation, or the range is a work item of a larger file)
+    public PdfPageIterator(PDDocument document, int firstPageNumber, int lastPageNumber,
+            ExecutionContext context) throws IOException {
+        this.document = document;
+        this.context = context;
+        this.pageTextExtractor = new PageTextExtractor();
+        this.numberOfPages = document.getNumberOfPages();
+        this.firstPageNumber = Math.max(1, firstPageNumber);
+        this.lastPageNumber = Math.min(numberOfPages, lastPageNumber);
+        this.nextPageNumber = this.firstPageNumber;
+    }
+
+    @Override
+    public int getNumberOfPages() {
+        return numberOfPages;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (pendingChunks.isEmpty() && nextPageNumber <= lastPageNumber) {
+            extractPage(nextPageNumber++);
+        }
+        return !pendingChunks.isEmpty();
+    }
+
+    @Override
+    public PageInfo next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return pendingChunks.poll();
+    }
+
+    @Override
+    public void close() throws IOException {
+        int extractedPages = nextPageNumber - firstPageNumber;
+        context.getLogger().info("Extracted " + extractedPages + " pages with 1 thread : "
+                + extractedPages * TimeUnit.SECONDS.toNanos(1) / Math.max(1, extractionNanos)
+                + " pages/sec");
+        document.close();
+    }
+
+    private void extractPage(int pageNumber) {
+        long start = System.nanoTime();
+        try {
+            pendingChunks.addAll(pageTextExtractor.extract(document, pageNumber));
+        } catch (IOException e) {
+            context.getLogger().severe("Error while extracting text from PDF: " + e.getMessage());
+            e.printStackTrace();
+        }
+        extractionNanos += System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,173 @@
+package com.yoshio3;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import org.postgresql.PGConnection;
+import org.postgresql.PGStatement;
+import org.postgresql.core.BaseConnection;
+import org.postgresql.util.ByteConverter;
+import org.postgresql.util.PGBinaryObject;
+import org.postgresql.util.PGobject;
+
+// pgvector "vector" value backed by a float[] (pgvector stores 4-byte floats).
+// On a connection prepared by register(), the value is sent and received in the binary format
+// of pgvector (vector_send / vector_recv : int16 dimensions, int16 unused, float4 values), so
+// neither the client nor the server formats or parses a text literal such as [0.1,0.2,...].
+// On other connections, the text representation is used.
+public class PgVector extends PGobject implements PGBinaryObject {
+
+    private static final String TYPE_NAME = "vector";
+    // Size of the header (dimensions and unused) of the binary format
+    private static final int HEADER_BYTES = 4;
+
+    private float[] values;
+
+    // Used by the driver when a vector column is read
+    public PgVector() {
+        setType(TYPE_NAME);
+    }
+
+    public PgVector(float[] values) {
+        this();
+        this.values = values;
+    }
+
+    public float[] toArray() {
+        return values;
+    }
+
+    // Scale the vector to unit length (in place), so that the inner product is the cosine
+    public static void normalize(float[] values) {
+        double sumOfSquares = 0;
+        for (float value : values) {
+            sumOfSquares += (double) value * value;
+        }
+        if (sumOfSquares == 0) {
+            return;
+        }
+        float scale = (float) (1 / Math.sqrt(sumOfSquares));
+        for (int i = 0; i < values.length; i++) {
+            values[i] *= scale;
+        }
+    }
+
+    // Enable the binary transfer of the vector type on the connection (it can be called each
+    // time the connection is borrowed from a pool, the registration is kept by the connection)
+    public static void register(Connection connection) throws SQLException {
+        connection.unwrap(PGConnection.class).addDataType(TYPE_NAME, PgVector.class);
+        BaseConnection baseConnection = connection.unwrap(BaseConnection.class);
+        // The OID of an extension type differs between databases (cached by the connection)
+        int oid = baseConnection.getTypeInfo().getPGType(TYPE_NAME);
+        if (oid != 0) {
+            baseConnection.getQueryExecutor().addBinarySendOid(oid);
+            baseConnection.getQueryExecutor().addBinaryReceiveOid(oid);
+        }
+    }
+
+    // The driver only requests binary result columns for a statement whose result types are
+    // known before it is executed : please call it for the statements which read vectors
+    public static void useBinaryResults(Statement statement) throws SQLException {
+        statement.unwrap(PGStatement.class).setPrepareThreshold(-1);
+    }
+
+    @Override
+    public void setByteValue(byte[] bytes, int offset) throws SQLException {
+        int dimensions = ByteConverter.int2(bytes, offset);
+        values = new float[dimensions];
+        for (int i = 0; i < dimensions; i++) {
+            values[i] = ByteConverter.float4(bytes, offset + HEADER_BYTES + i * Float.BYTES);
+        }
+    }
+
+    @Override
+    public int lengthInBytes() {
+        return values == null ? 0 : HEADER_BYTES + values.length * Float.BYTES;
+    }
+
+    @Override
+    public void toBytes(byte[] bytes, int offset) {
+        ByteConverter.int2(bytes, offset, values.length);
+        ByteConverter.int2(bytes, offset + 2, 0);
+        for (int i = 0; i < values.length; i++) {
+            ByteConverter.float4(bytes, offset + HEADER_BYTES + i * Float.BYTES, values[i]);
+        }
+    }
+
+    // Binary representation (the same bytes as toBytes)
+    public byte[] toBytes() {
+        byte[] bytes = new byte[lengthInBytes()];
+        toBytes(bytes, 0);
+        return bytes;
+    }
+
+    @Override
+    public void setValue(String value) throws SQLException {
+        if (value == null) {
+            values = null;
+            return;
+        }
+        int start = value.indexOf('[') + 1;
+        int end = value.lastIndexOf(']');
+        if (start >= end) {
+            values = new float[0];
+            return;
+        }
+        // Count the values first, so the array is allocated once
+        int dimensions = 1;
+        for (int i = start; i < end; i++) {
+            if (value.charAt(i) == ',') {
+                dimensions++;
+            }
+        }
+        values = new float[dimensions];
+        for (int i = 0; i < dimensions; i++) {
+            int comma = value.indexOf(',', start);
+            if (comma < 0 || comma > end) {
+                comma = end;
+            }
+            values[i] = Float.parseFloat(value.substring(start, comma).trim());
+            start = comma + 1;
+        }
+    }
+
+    @Override
+    public String getValue() {
+        if (values == null) {
+            return null;
+        }
+        StringBuilder literal = new StringBuilder(values.length * 12);
+        literal.append('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                literal.append(',');
+            }
+            literal.append(values[i]);
+        }
+        return literal.append(']').toString();
+    }
+
+    // PGobject checks getValue(), which would format the whole vector
+    @Override
+    public boolean isNull() {
+        return values == null;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof PgVector other && Arrays.equals(values, other.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(values);
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        PgVector clone = (PgVector) super.clone();
+        clone.values = values == null ? null : values.clone();
+        return clone;
+    }
+}
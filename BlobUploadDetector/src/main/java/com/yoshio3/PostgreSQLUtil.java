@@ -0,0 +1,78 @@
+package com.yoshio3;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+public class PostgreSQLUtil {
+
+    // Azure PostgreSQL JDBC URL
+    private static final String POSTGRESQL_JDBC_URL;
+    // Azure PostgreSQL username
+    private static final String POSTGRESQL_USER;
+    // Azure PostgreSQL password
+    private static final String POSTGRESQL_PASSWORD;
+    // Maximum number of pooled connections per Function host
+    private static final int POSTGRESQL_MAX_POOL_SIZE;
+    // Channel of the notifications sent when the rows of a file are written or deleted
+    // (PDF-Summarizer invalidates its caches), empty : no notification
+    private static final String CHANGE_NOTIFICATION_CHANNEL;
+
+    // Connection pool shared by all function invocations running on the same host.
+    // Azure Functions creates a new Function instance for each invocation, so the pool
+    // must be static to reuse the TLS connections to Azure PostgreSQL.
+    private static final HikariDataSource DATA_SOURCE;
+
+    static {
+        POSTGRESQL_JDBC_URL = System.getenv("AzurePostgresqlJdbcurl");
+        POSTGRESQL_USER = System.getenv("AzurePostgresqlUser");
+        POSTGRESQL_PASSWORD = System.getenv("AzurePostgresqlPassword");
+        POSTGRESQL_MAX_POOL_SIZE = EnvironmentUtil.getInt("AzurePostgresqlMaxPoolSize", 10);
+        CHANGE_NOTIFICATION_CHANNEL = EnvironmentUtil
+                .getString("AzurePostgresqlChangeNotificationChannel", "document_search_changed");
+
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(POSTGRESQL_JDBC_URL);
+        config.setUsername(POSTGRESQL_USER);
+        config.setPassword(POSTGRESQL_PASSWORD);
+        config.setMaximumPoolSize(POSTGRESQL_MAX_POOL_SIZE);
+        config.setMinimumIdle(1);
+        config.setPoolName("BlobUploadDetectorPool");
+        // Do not fail the Function host start up when PostgreSQL is temporarily unavailable
+        config.setInitializationFailTimeout(-1);
+        DATA_SOURCE = new HikariDataSource(config);
+        Runtime.getRuntime().addShutdownHook(new Thread(DATA_SOURCE::close));
+    }
+
+    private PostgreSQLUtil() {
+    }
+
+    // Borrow a connection from the shared pool (close() returns it to the pool).
+    // The vectors are sent and received in the binary format of pgvector.
+    public static Connection getConnection() throws SQLException {
+        Connection connection = DATA_SOURCE.getConnection();
+        try {
+            PgVector.register(connection);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    // Notify the change of the rows of the file (NOTIFY is delivered when the transaction
+    // commits, and is not delivered if it is rolled back)
+    public static void notifyChange(Connection connection, String fileName) throws SQLException {
+        if (CHANGE_NOTIFICATION_CHANNEL.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement notifyStatement =
+                connection.prepareStatement("SELECT pg_notify(?, ?)")) {
+            notifyStatement.setString(1, CHANGE_NOTIFICATION_CHANNEL);
+            notifyStatement.setString(2, fileName);
+            notifyStatement.execute();
+        }
+    }
+}
@@ -0,0 +1,4 @@
+package com.yoshio3;
+
+// A chunk of the text of a page, with its number of tokens
+public record TextChunk(String text, int tokenCount) {}
@@ -0,0 +1,17 @@
+package com.yoshio3;
+
+import java.util.List;
+
+// Splits the text of a page into chunks which can be sent to the Embedding API.
+// The strategy is selected by "ChunkingStrategy" : "token" (default) or "character".
+public interface TextChunker {
+
+    List<TextChunk> split(String pageText);
+
+    static TextChunker create() {
+        if ("character".equalsIgnoreCase(EnvironmentUtil.getString("ChunkingStrategy", "token"))) {
+            return new CharacterChunker();
+        }
+        return new TokenChunker();
+    }
+}
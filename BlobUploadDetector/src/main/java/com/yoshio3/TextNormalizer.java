@@ -0,0 +1,40 @@
+package com.yoshio3;
+
+// Normalizes the whitespace of the extracted text in a single pass :
+// newline characters are replaced with a whitespace, and runs of two or more whitespace
+// characters are replaced with a single whitespace.
+// (same result as replace("\n", " ").replaceAll("\\s{2,}", " "))
+// The buffer is reused, so please use one instance per thread.
+public class TextNormalizer {
+
+    private final StringBuilder buffer = new StringBuilder(8192);
+
+    public String normalize(String text) {
+        buffer.setLength(0);
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (!isWhitespace(c)) {
+                buffer.append(c);
+                i++;
+                continue;
+            }
+            int runStart = i;
+            while (i < length && isWhitespace(text.charAt(i))) {
+                i++;
+            }
+            if (i - runStart == 1) {
+                buffer.append(c == '\n' ? ' ' : c);
+            } else {
+                buffer.append(' ');
+            }
+        }
+        return buffer.toString();
+    }
+
+    // Same characters as \s of java.util.regex
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
@@ -0,0 +1,129 @@
+package com.yoshio3;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import com.knuddels.jtokkit.api.IntArrayList;
+import java.util.ArrayList;
+import java.util.List;
+
+// Splits the text of a page into windows of a fixed number of tokens (cl100k_base, the
+// tokenizer of text-embedding-ada-002), so that a chunk never exceeds the input limit of the
+// model, and short pages are not split at all regardless of the language.
+// The page is tokenized once, the end of a window is moved back to the end of a sentence if
+// there is one near the end, and the chunks are sliced from the page by their offsets.
+public class TokenChunker implements TextChunker {
+
+    // Maximum number of input tokens of text-embedding-ada-002
+    private static final int MODEL_MAX_TOKENS = 8191;
+    // Maximum number of tokens per chunk
+    private static final int CHUNK_MAX_TOKENS;
+    // Number of tokens shared by two consecutive chunks of a page
+    private static final int CHUNK_OVERLAP_TOKENS;
+    // The end of a window is moved back to the end of a sentence within the last
+    // 1/SNAP_RANGE_DIVISOR of the window
+    private static final int SNAP_RANGE_DIVISOR = 5;
+
+    // The encoding is thread-safe, and loading the vocabulary is expensive
+    private static final Encoding ENCODING =
+            Encodings.newLazyEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+
+    static {
+        CHUNK_MAX_TOKENS = Math.max(1,
+                Math.min(MODEL_MAX_TOKENS, EnvironmentUtil.getInt("ChunkMaxTokens", 8000)));
+        CHUNK_OVERLAP_TOKENS = Math.max(0,
+                Math.min(CHUNK_MAX_TOKENS / 2, EnvironmentUtil.getInt("ChunkOverlapTokens", 0)));
+    }
+
+    private final IntArrayList singleToken = new IntArrayList(1);
+
+    @Override
+    public List<TextChunk> split(String pageText) {
+        List<TextChunk> chunks = new ArrayList<>();
+        IntArrayList tokens = ENCODING.encodeOrdinary(pageText);
+        int tokenCount = tokens.size();
+        if (tokenCount <= CHUNK_MAX_TOKENS) {
+            chunks.add(new TextChunk(pageText, tokenCount));
+            return chunks;
+        }
+
+        int[] tokenEnds = tokenEndOffsets(pageText, tokens);
+        int start = 0;
+        while (start < tokenCount) {
+            int end = Math.min(tokenCount, start + CHUNK_MAX_TOKENS);
+            if (end < tokenCount) {
+                end = snapToSentenceEnd(pageText, tokenEnds, start, end);
+            }
+            int startOffset = start == 0 ? 0 : tokenEnds[start - 1];
+            int endOffset = end == tokenCount ? pageText.length() : tokenEnds[end - 1];
+            if (endOffset > startOffset) {
+                // The tokens at the boundaries of a slice may be merged differently, so the
+                // slice is counted again to obtain the exact number of tokens
+                String chunkText = pageText.substring(startOffset, endOffset);
+                chunks.add(new TextChunk(chunkText, ENCODING.countTokensOrdinary(chunkText)));
+            }
+            if (end == tokenCount) {
+                break;
+            }
+            start = Math.max(start + 1, end - CHUNK_OVERLAP_TOKENS);
+        }
+        return chunks;
+    }
+
+    // Move the end of the window back to the token which ends a sentence (if any)
+    private static int snapToSentenceEnd(String text, int[] tokenEnds, int start, int end) {
+        int limit = Math.max(start + 1, end - (end - start) / SNAP_RANGE_DIVISOR);
+        for (int candidate = end; candidate > limit; candidate--) {
+            int offset = tokenEnds[candidate - 1];
+            if (offset > 0 && isSentenceEnd(text.charAt(offset - 1))) {
+                return candidate;
+            }
+        }
+        return end;
+    }
+
+    // Character offset (in the text) of the end of each token.
+    // A token may end in the middle of a multi-byte character : the offset is then the end of
+    // the previous complete character, so that a chunk never contains a broken character.
+    private int[] tokenEndOffsets(String text, IntArrayList tokens) {
+        int[] tokenEnds = new int[tokens.size()];
+        int charOffset = 0;
+        // Number of UTF-8 bytes of the tokens, and of the characters up to charOffset
+        long tokenBytes = 0;
+        long charBytes = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            singleToken.clear();
+            singleToken.add(tokens.get(i));
+            tokenBytes += ENCODING.decodeBytes(singleToken).length;
+            while (charOffset < text.length()) {
+                int codePoint = text.codePointAt(charOffset);
+                int codePointBytes = utf8Length(codePoint);
+                if (charBytes + codePointBytes > tokenBytes) {
+                    break;
+                }
+                charBytes += codePointBytes;
+                charOffset += Character.charCount(codePoint);
+            }
+            tokenEnds[i] = charOffset;
+        }
+        return tokenEnds;
+    }
+
+    private static int utf8Length(int codePoint) {
+        if (codePoint < 0x80) {
+            return 1;
+        } else if (codePoint < 0x800) {
+            return 2;
+        } else if (codePoint < 0x10000) {
+            // Unpaired surrogates are encoded as '?' (1 byte)
+            return Character.isSurrogate((char) codePoint) ? 1 : 3;
+        }
+        return 4;
+    }
+
+    // Determination of the end of a sentence
+    private static boolean isSentenceEnd(char c) {
+        return c == '.' || c == '?' || c == '!' || c == ':' || c == ';'
+                || c == '。' || c == '．' || c == '？' || c == '！';
+    }
+}
@@ -0,0 +1,23 @@
+package com.yoshio3;
+
+// Rough estimation of the number of tokens of a text (used to pack embedding requests).
+// ASCII text is about 4 characters per token, other characters (e.g. CJK) are counted
+// as one token per character so that the estimation does not fall below the real value.
+public class TokenEstimator {
+
+    private TokenEstimator() {
+    }
+
+    public static int estimate(String text) {
+        int asciiChars = 0;
+        int otherChars = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) < 0x80) {
+                asciiChars++;
+            } else {
+                otherChars++;
+            }
+        }
+        return (asciiChars + 3) / 4 + otherChars;
+    }
+}
@@ -0,0 +1,324 @@
+package com.yoshio3;
+
+import com.microsoft.azure.functions.ExecutionContext;
+import com.yoshio3.models.CosmosDBDocumentStatus;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import org.postgresql.PGConnection;
+
+// Buffers the vector rows of one file and writes them to PostgreSQL in batches,
+// either with multi-row INSERT statements or with COPY ... FROM STDIN.
+// The rows are upserted by their (deterministic) id, and the other rows of the same pages
+// (chunks which no longer exist) are deleted in the same transaction.
+// With AzurePostgresqlTextTableName, the text of the chunks is written to a separate table
+// (its rows are deleted with the vector rows by ON DELETE CASCADE), so the rows scanned by the
+// searches only contain the vectors and the small columns.
+public class VectorBatchWriter implements AutoCloseable {
+
+    // Azure PostgreSQL table name
+    private static final String POSTGRESQL_TABLE_NAME;
+    // Number of rows buffered before they are written to PostgreSQL
+    private static final int INSERT_BATCH_SIZE;
+    // Maximum time (in milliseconds) rows are kept in the buffer before they are written
+    private static final long FLUSH_INTERVAL_MILLIS;
+    // Write mode : "copy" (COPY ... FROM STDIN) or "insert" (multi-row INSERT)
+    private static final String INSERT_MODE;
+    // Table name of the texts (empty : the text is stored in the origntext column)
+    private static final String TEXT_TABLE_NAME;
+
+    private static final String COLUMN_NAMES =
+            "id, embedding, origntext, fileName, pageNumber, chunkIndex";
+    private static final String COLUMNS = " (" + COLUMN_NAMES + ")";
+    private static final String ON_CONFLICT;
+    private static final String TEXT_COLUMNS = " (id, origntext)";
+    private static final String TEXT_ON_CONFLICT =
+            " ON CONFLICT (id) DO UPDATE SET origntext = EXCLUDED.origntext";
+    // Session-local table which receives the rows of COPY before they are upserted
+    private static final String COPY_TABLE_NAME = "vector_upsert";
+    // Header of the COPY binary format
+    private static final byte[] COPY_BINARY_SIGNATURE =
+            {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0};
+    private static final int COPY_COLUMN_COUNT = 6;
+
+    static {
+        POSTGRESQL_TABLE_NAME = System.getenv("AzurePostgresqlDbTableName");
+        INSERT_BATCH_SIZE = Math.max(1, EnvironmentUtil.getInt("AzurePostgresqlInsertBatchSize", 100));
+        FLUSH_INTERVAL_MILLIS = EnvironmentUtil.getLong("AzurePostgresqlFlushIntervalMillis", 5000);
+        INSERT_MODE = EnvironmentUtil.getString("AzurePostgresqlInsertMode", "copy");
+        TEXT_TABLE_NAME = EnvironmentUtil.getString("AzurePostgresqlTextTableName", "");
+        // The primary key of a partitioned table must contain the partition key (fileName)
+        boolean partitioned = EnvironmentUtil.getBoolean("AzurePostgresqlTablePartitioned", false);
+        ON_CONFLICT = " ON CONFLICT (" + (partitioned ? "id, fileName" : "id") + ") DO UPDATE SET"
+                + " embedding = EXCLUDED.embedding, origntext = EXCLUDED.origntext,"
+                + (partitioned ? "" : " fileName = EXCLUDED.fileName,")
+                + " pageNumber = EXCLUDED.pageNumber, chunkIndex = EXCLUDED.chunkIndex";
+    }
+
+    private final CosmosStatusWriter statusWriter;
+    // Called with each row which is committed
+    private final Consumer<VectorRecord> writtenRowConsumer;
+    // Called with the page number of a row which could not be written
+    private final IntConsumer failedPageConsumer;
+    private final ExecutionContext context;
+    private final List<VectorRecord> buffer = new ArrayList<>();
+    // Time when the oldest row in the buffer was added
+    private long firstBufferedNanos;
+
+    // Statistics for the whole file (used to report rows/sec)
+    private long totalRows;
+    private long totalWriteNanos;
+
+    public VectorBatchWriter(CosmosStatusWriter statusWriter,
+            Consumer<VectorRecord> writtenRowConsumer, IntConsumer failedPageConsumer,
+            ExecutionContext context) {
+        this.statusWriter = statusWriter;
+        this.writtenRowConsumer = writtenRowConsumer;
+        this.failedPageConsumer = failedPageConsumer;
+        this.context = context;
+    }
+
+    // Add a row to the buffer, and write the buffer if the batch size or flush interval is reached
+    public synchronized void add(VectorRecord vectorRecord) {
+        if (buffer.isEmpty()) {
+            firstBufferedNanos = System.nanoTime();
+        }
+        buffer.add(vectorRecord);
+        long bufferedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - firstBufferedNanos);
+        if (buffer.size() >= INSERT_BATCH_SIZE || bufferedMillis >= FLUSH_INTERVAL_MILLIS) {
+            flush();
+        }
+    }
+
+    // Write the buffer if the oldest row has been kept longer than the flush interval
+    public synchronized void flushIfExpired() {
+        if (!buffer.isEmpty() && TimeUnit.NANOSECONDS.toMillis(
+                System.nanoTime() - firstBufferedNanos) >= FLUSH_INTERVAL_MILLIS) {
+            flush();
+        }
+    }
+
+    // Write all buffered rows to PostgreSQL in a single transaction
+    public synchronized void flush() {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        List<VectorRecord> batch = new ArrayList<>(buffer);
+        buffer.clear();
+
+        long start = System.nanoTime();
+        try (Connection connection = PostgreSQLUtil.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                deleteStaleChunks(connection, batch);
+                if ("insert".equalsIgnoreCase(INSERT_MODE)) {
+                    writeWithMultiRowInsert(connection, batch);
+                    if (isTextTableEnabled()) {
+                        writeTexts(connection, batch);
+                    }
+                } else {
+                    writeWithCopy(connection, batch);
+                }
+                // The rows of a writer are the rows of one file
+                PostgreSQLUtil.notifyChange(connection, batch.get(0).fileName());
+                connection.commit();
+            } catch (Exception e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (Exception e) {
+            context.getLogger()
+                    .severe("Error while inserting data to PostgreSQL: " + e.getMessage());
+            batch.forEach(row -> {
+                statusWriter.updateStatus(row.id().toString(),
+                        CosmosDBDocumentStatus.FAILED_DB_INSERTION);
+                failedPageConsumer.accept(row.pageNumber());
+            });
+            return;
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        totalRows += batch.size();
+        totalWriteNanos += elapsedNanos;
+        context.getLogger().info("Inserted " + batch.size() + " rows (" + INSERT_MODE + ") in "
+                + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms : "
+                + rowsPerSecond(batch.size(), elapsedNanos) + " rows/sec");
+
+        batch.forEach(row -> {
+            statusWriter.updateStatus(row.id().toString(),
+                    CosmosDBDocumentStatus.FINISH_DB_INSERTION);
+            statusWriter.updateStatus(row.id().toString(), CosmosDBDocumentStatus.COMPLETED);
+            writtenRowConsumer.accept(row);
+        });
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+        if (totalRows > 0) {
+            context.getLogger().info("Total inserted rows: " + totalRows + " ("
+                    + rowsPerSecond(totalRows, totalWriteNanos) + " rows/sec)");
+        }
+    }
+
+    // Delete the rows of the pages in the batch which are not chunks of the current page text
+    // (the page has fewer chunks than before, or the rows were inserted with random ids)
+    private void deleteStaleChunks(Connection connection, List<VectorRecord> batch)
+            throws SQLException {
+        String deleteSql = "DELETE FROM " + POSTGRESQL_TABLE_NAME
+                + " WHERE fileName = ? AND pageNumber = ? AND NOT (id = ANY(?))";
+        Set<Integer> pages = new HashSet<>();
+        try (PreparedStatement deleteStatement = connection.prepareStatement(deleteSql)) {
+            for (VectorRecord row : batch) {
+                if (!pages.add(row.pageNumber())) {
+                    continue;
+                }
+                UUID[] chunkIds = new UUID[row.chunkCount()];
+                for (int i = 0; i < chunkIds.length; i++) {
+                    chunkIds[i] = EmbeddingChunk.chunkId(row.fileName(), row.pageNumber(), i);
+                }
+                deleteStatement.setString(1, row.fileName());
+                deleteStatement.setInt(2, row.pageNumber());
+                deleteStatement.setArray(3, connection.createArrayOf("uuid", chunkIds));
+                deleteStatement.addBatch();
+            }
+            deleteStatement.executeBatch();
+        }
+    }
+
+    // INSERT INTO ... VALUES (...), (...), ... with one statement per batch
+    private void writeWithMultiRowInsert(Connection connection, List<VectorRecord> batch)
+            throws SQLException {
+        StringBuilder insertSql = new StringBuilder("INSERT INTO ").append(POSTGRESQL_TABLE_NAME)
+                .append(COLUMNS).append(" VALUES ");
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) {
+                insertSql.append(", ");
+            }
+            insertSql.append("(?, ?, ?, ?, ?, ?)");
+        }
+        insertSql.append(ON_CONFLICT);
+        try (PreparedStatement insertStatement = connection.prepareStatement(insertSql.toString())) {
+            int index = 1;
+            for (VectorRecord row : batch) {
+                insertStatement.setObject(index++, row.id());
+                insertStatement.setObject(index++, new PgVector(row.embedding()));
+                insertStatement.setString(index++, isTextTableEnabled() ? null : row.originText());
+                insertStatement.setString(index++, row.fileName());
+                insertStatement.setInt(index++, row.pageNumber());
+                insertStatement.setInt(index++, row.chunkIndex());
+            }
+            insertStatement.executeUpdate();
+        }
+    }
+
+    // INSERT INTO <text table> ... VALUES (...), (...), ... (after the vector rows, which are
+    // referenced by the text rows)
+    private void writeTexts(Connection connection, List<VectorRecord> batch)
+            throws SQLException {
+        StringBuilder insertSql = new StringBuilder("INSERT INTO ").append(TEXT_TABLE_NAME)
+                .append(TEXT_COLUMNS).append(" VALUES ");
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) {
+                insertSql.append(", ");
+            }
+            insertSql.append("(?, ?)");
+        }
+        insertSql.append(TEXT_ON_CONFLICT);
+        try (PreparedStatement insertStatement = connection.prepareStatement(insertSql.toString())) {
+            int index = 1;
+            for (VectorRecord row : batch) {
+                insertStatement.setObject(index++, row.id());
+                insertStatement.setString(index++, row.originText());
+            }
+            insertStatement.executeUpdate();
+        }
+    }
+
+    // COPY ... FROM STDIN (binary format) which avoids the per-row statement overhead, and
+    // sends the vectors as float4 values instead of text literals.
+    // COPY can not update existing rows, so the rows are copied into a temporary table
+    // (emptied at commit) and upserted from there with one statement.
+    private void writeWithCopy(Connection connection, List<VectorRecord> batch)
+            throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(batch.size() * 16 * 1024);
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.write(COPY_BINARY_SIGNATURE);
+        // Flags and length of the header extension
+        data.writeInt(0);
+        data.writeInt(0);
+        for (VectorRecord row : batch) {
+            data.writeShort(COPY_COLUMN_COUNT);
+            data.writeInt(16);
+            data.writeLong(row.id().getMostSignificantBits());
+            data.writeLong(row.id().getLeastSignificantBits());
+            byte[] vector = new PgVector(row.embedding()).toBytes();
+            data.writeInt(vector.length);
+            data.write(vector);
+            writeCopyText(data, row.originText());
+            writeCopyText(data, row.fileName());
+            data.writeInt(4);
+            data.writeInt(row.pageNumber());
+            data.writeInt(4);
+            data.writeInt(row.chunkIndex());
+        }
+        // End of the data
+        data.writeShort(-1);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TEMP TABLE IF NOT EXISTS " + COPY_TABLE_NAME + " (LIKE "
+                    + POSTGRESQL_TABLE_NAME + " INCLUDING DEFAULTS) ON COMMIT DELETE ROWS");
+            String copySql = "COPY " + COPY_TABLE_NAME + COLUMNS + " FROM STDIN (FORMAT binary)";
+            connection.unwrap(PGConnection.class).getCopyAPI().copyIn(copySql,
+                    new ByteArrayInputStream(bytes.toByteArray()));
+            if (!isTextTableEnabled()) {
+                statement.executeUpdate("INSERT INTO " + POSTGRESQL_TABLE_NAME + COLUMNS
+                        + " SELECT " + COLUMN_NAMES + " FROM " + COPY_TABLE_NAME + ON_CONFLICT);
+                return;
+            }
+            // The texts are copied once, and moved to the text table
+            statement.executeUpdate("INSERT INTO " + POSTGRESQL_TABLE_NAME + COLUMNS
+                    + " SELECT id, embedding, NULL, fileName, pageNumber, chunkIndex FROM "
+                    + COPY_TABLE_NAME + ON_CONFLICT);
+            statement.executeUpdate("INSERT INTO " + TEXT_TABLE_NAME + TEXT_COLUMNS
+                    + " SELECT id, origntext FROM " + COPY_TABLE_NAME + TEXT_ON_CONFLICT);
+        }
+    }
+
+    private static boolean isTextTableEnabled() {
+        return !TEXT_TABLE_NAME.isEmpty();
+    }
+
+    // Text value of the COPY binary format : length and UTF-8 bytes (-1 for NULL)
+    private static void writeCopyText(DataOutputStream data, String value) throws IOException {
+        if (value == null) {
+            data.writeInt(-1);
+            return;
+        }
+        // PostgreSQL text columns can not contain NUL characters
+        byte[] text = value.replace("\0", "").getBytes(StandardCharsets.UTF_8);
+        data.writeInt(text.length);
+        data.write(text);
+    }
+
+    private static long rowsPerSecond(long rows, long nanos) {
+        if (nanos <= 0) {
+            return rows;
+        }
+        return rows * TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+}
@@ -0,0 +1,306 @@
+package com.yoshio3;
+
+import com.microsoft.azure.functions.ExecutionContext;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+// Manages the ANN index (HNSW or IVFFlat of pgvector) of the embeddings.
+// The index is not maintained during a bulk load : when a file adds more rows than
+// VectorIndexDeferBuildPercent % of the rows of the table, the index is dropped before the load,
+// and it is built after the load (building an index once is much faster than inserting each
+// row into it, and IVFFlat needs the rows to choose the centers of its lists).
+// The index is built with CREATE INDEX CONCURRENTLY, so the searches and the other loads are
+// not blocked, and only one Function instance builds it at a time (advisory lock).
+// The operator class of the index follows VectorDistanceMetric (the index is rebuilt when the
+// metric is changed), which must be the same as the metric of the searches (PDF-Summarizer).
+// A partitioned table (AzurePostgresqlTablePartitioned) has an index on each partition, which
+// can not be built or dropped CONCURRENTLY : the load of the other files waits for the build.
+// With VectorIndexQuantization, the index is built on the halfvec or binary representation of
+// the embeddings (an expression index : the rows keep the full vector for the re-ranking).
+public class VectorIndexManager {
+
+    // Azure PostgreSQL table name
+    private static final String POSTGRESQL_TABLE_NAME;
+    // Index type : "hnsw", "ivfflat" or "none" (the index is not managed)
+    private static final String INDEX_TYPE;
+    // Distance metric of the searches (the operator class of the index)
+    private static final DistanceMetric DISTANCE_METRIC;
+    // Representation of the embeddings in the index : "none", "halfvec" or "binary"
+    private static final VectorQuantization QUANTIZATION;
+    // Number of dimensions of the embeddings (the quantized expressions need it)
+    private static final int DIMENSIONS;
+    // HNSW : maximum number of connections per layer
+    private static final int HNSW_M;
+    // HNSW : size of the candidate list while the graph is built
+    private static final int HNSW_EF_CONSTRUCTION;
+    // IVFFlat : number of lists (0 : rows / 1000 up to 1M rows, sqrt(rows) above)
+    private static final int IVFFLAT_LISTS;
+    // IVFFlat : the index is not built until the table has this number of rows
+    private static final long IVFFLAT_MIN_ROWS;
+    // The index is dropped before a load which adds more rows than this percentage of the table
+    private static final int DEFER_BUILD_PERCENT;
+    // maintenance_work_mem used while the index is built (e.g. "1GB", empty : server setting)
+    private static final String MAINTENANCE_WORK_MEM;
+    // The table is partitioned (by the hash of fileName)
+    private static final boolean PARTITIONED;
+    // CONCURRENTLY (not supported for a partitioned table)
+    private static final String CONCURRENTLY;
+
+    private static final String INDEX_NAME;
+    // Name of the new index while an index is rebuilt
+    private static final String REBUILD_INDEX_NAME;
+
+    static {
+        POSTGRESQL_TABLE_NAME = System.getenv("AzurePostgresqlDbTableName");
+        INDEX_TYPE = EnvironmentUtil.getString("VectorIndexType", "hnsw").toLowerCase(Locale.ROOT);
+        DISTANCE_METRIC =
+                DistanceMetric.fromName(EnvironmentUtil.getString("VectorDistanceMetric", "l2"));
+        QUANTIZATION = VectorQuantization
+                .fromName(EnvironmentUtil.getString("VectorIndexQuantization", "none"));
+        DIMENSIONS = EnvironmentUtil.getInt("VectorDimensions", 1536);
+        HNSW_M = Math.max(2, EnvironmentUtil.getInt("VectorIndexHnswM", 16));
+        HNSW_EF_CONSTRUCTION = Math.max(2 * HNSW_M,
+                EnvironmentUtil.getInt("VectorIndexHnswEfConstruction", 64));
+        IVFFLAT_LISTS = Math.max(0, EnvironmentUtil.getInt("VectorIndexIvfflatLists", 0));
+        IVFFLAT_MIN_ROWS = EnvironmentUtil.getLong("VectorIndexIvfflatMinRows", 10000);
+        DEFER_BUILD_PERCENT = EnvironmentUtil.getInt("VectorIndexDeferBuildPercent", 100);
+        MAINTENANCE_WORK_MEM = EnvironmentUtil.getString("VectorIndexMaintenanceWorkMem", "");
+        PARTITIONED = EnvironmentUtil.getBoolean("AzurePostgresqlTablePartitioned", false);
+        CONCURRENTLY = PARTITIONED ? "" : "CONCURRENTLY ";
+        INDEX_NAME = POSTGRESQL_TABLE_NAME + "_EMBEDDING_IDX";
+        REBUILD_INDEX_NAME = INDEX_NAME + "_REBUILD";
+    }
+
+    // Current index of the table (null fields if it does not exist)
+    private record IndexState(long rows, String type, String operatorClass, Integer lists,
+            boolean valid) {
+
+        boolean exists() {
+            return type != null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return "hnsw".equals(INDEX_TYPE) || "ivfflat".equals(INDEX_TYPE);
+    }
+
+    // Called before a file is loaded, with the estimated number of new rows
+    public void beforeLoad(String fileName, long newRows, ExecutionContext context) {
+        if (!isEnabled() || DEFER_BUILD_PERCENT <= 0 || newRows <= 0) {
+            return;
+        }
+        try (Connection connection = PostgreSQLUtil.getConnection()) {
+            IndexState index = readIndexState(connection, INDEX_NAME);
+            if (!index.exists() || newRows * 100 <= index.rows() * DEFER_BUILD_PERCENT) {
+                return;
+            }
+            if (!tryLock(connection)) {
+                // Another instance is building the index
+                return;
+            }
+            try {
+                execute(connection, "DROP INDEX " + CONCURRENTLY + "IF EXISTS " + INDEX_NAME);
+                context.getLogger().info("Dropped the vector index " + INDEX_NAME
+                        + " before the bulk load of " + fileName + " (" + newRows
+                        + " new rows, " + index.rows() + " rows in the table)");
+            } finally {
+                unlock(connection);
+            }
+        } catch (SQLException e) {
+            context.getLogger().warning("Error while dropping the vector index: " + e.getMessage());
+        }
+    }
+
+    // Called after a file is loaded : build the index if it does not exist, or rebuild it if
+    // its type, operator class (metric and quantization) or number of lists does not match
+    // the settings
+    public void afterLoad(ExecutionContext context) {
+        if (!isEnabled()) {
+            return;
+        }
+        try (Connection connection = PostgreSQLUtil.getConnection()) {
+            if (!tryLock(connection)) {
+                return;
+            }
+            try {
+                IndexState index = readIndexState(connection, INDEX_NAME);
+                if (!index.exists() || "ivfflat".equals(INDEX_TYPE)) {
+                    // The estimated number of rows is not updated by the load until autovacuum
+                    execute(connection, "ANALYZE " + POSTGRESQL_TABLE_NAME);
+                    index = readIndexState(connection, INDEX_NAME);
+                }
+                if ("ivfflat".equals(INDEX_TYPE) && index.rows() < IVFFLAT_MIN_ROWS) {
+                    context.getLogger().info("The vector index is not built until the table has "
+                            + IVFFLAT_MIN_ROWS + " rows (" + index.rows() + " rows)");
+                    return;
+                }
+                if (!index.exists()) {
+                    buildIndex(connection, INDEX_NAME, index.rows(), context);
+                } else if (needsRebuild(index)) {
+                    // The new index is built next to the current one, which is used until the
+                    // new one is ready
+                    execute(connection,
+                            "DROP INDEX " + CONCURRENTLY + "IF EXISTS " + REBUILD_INDEX_NAME);
+                    buildIndex(connection, REBUILD_INDEX_NAME, index.rows(), context);
+                    execute(connection, "DROP INDEX " + CONCURRENTLY + "IF EXISTS " + INDEX_NAME);
+                    execute(connection,
+                            "ALTER INDEX " + REBUILD_INDEX_NAME + " RENAME TO " + INDEX_NAME);
+                }
+            } finally {
+                unlock(connection);
+            }
+        } catch (SQLException e) {
+            context.getLogger().warning("Error while building the vector index: " + e.getMessage());
+        }
+    }
+
+    private boolean needsRebuild(IndexState index) {
+        // A failed CREATE INDEX CONCURRENTLY leaves an invalid index
+        if (!index.valid() || !INDEX_TYPE.equals(index.type())
+                || !QUANTIZATION.operatorClass(DISTANCE_METRIC).equals(index.operatorClass())) {
+            return true;
+        }
+        // The lists of IVFFlat are not adapted when the table grows
+        return "ivfflat".equals(INDEX_TYPE) && index.lists() != null
+                && ivfflatLists(index.rows()) >= 2 * index.lists();
+    }
+
+    private void buildIndex(Connection connection, String indexName, long rows,
+            ExecutionContext context) throws SQLException {
+        String options = "hnsw".equals(INDEX_TYPE)
+                ? "m = " + HNSW_M + ", ef_construction = " + HNSW_EF_CONSTRUCTION
+                : "lists = " + ivfflatLists(rows);
+        String operatorClass = QUANTIZATION.operatorClass(DISTANCE_METRIC);
+        String createSql = "CREATE INDEX " + CONCURRENTLY + "IF NOT EXISTS " + indexName + " ON "
+                + POSTGRESQL_TABLE_NAME + " USING " + INDEX_TYPE + " ("
+                + QUANTIZATION.expression("embedding", DIMENSIONS) + " " + operatorClass
+                + ") WITH (" + options + ")";
+        if (!MAINTENANCE_WORK_MEM.isEmpty()) {
+            try (PreparedStatement setStatement = connection
+                    .prepareStatement("SELECT set_config('maintenance_work_mem', ?, false)")) {
+                setStatement.setString(1, MAINTENANCE_WORK_MEM);
+                setStatement.execute();
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            execute(connection, createSql);
+        } finally {
+            if (!MAINTENANCE_WORK_MEM.isEmpty()) {
+                execute(connection, "RESET maintenance_work_mem");
+            }
+        }
+        // The size of the index is the memory needed to keep it in shared_buffers
+        context.getLogger().info("Built the vector index " + indexName + " (" + INDEX_TYPE + ", "
+                + operatorClass + ", " + options + ") on " + rows + " rows in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, "
+                + readIndexSize(connection, indexName) / (1024 * 1024) + " MB");
+    }
+
+    private static long readIndexSize(Connection connection, String indexName)
+            throws SQLException {
+        // The size of a partitioned index is the sum of the indexes of the partitions
+        try (PreparedStatement selectStatement = connection.prepareStatement(
+                "SELECT COALESCE((SELECT sum(pg_relation_size(relid))"
+                        + " FROM pg_partition_tree(to_regclass(?))), 0)")) {
+            selectStatement.setString(1, indexName);
+            try (ResultSet resultSet = selectStatement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        }
+    }
+
+    private static int ivfflatLists(long rows) {
+        if (IVFFLAT_LISTS > 0) {
+            return IVFFLAT_LISTS;
+        }
+        long lists = rows <= 1_000_000 ? rows / 1000 : (long) Math.sqrt(rows);
+        return (int) Math.max(1, lists);
+    }
+
+    // Estimated number of rows of the table (updated by VACUUM / ANALYZE), and the index
+    private static IndexState readIndexState(Connection connection, String indexName)
+            throws SQLException {
+        String selectSql = "SELECT (SELECT reltuples::bigint FROM pg_class"
+                + " WHERE oid = to_regclass(?)), am.amname, opc.opcname, c.reloptions,"
+                + " i.indisvalid FROM pg_class c JOIN pg_am am ON am.oid = c.relam"
+                + " JOIN pg_index i ON i.indexrelid = c.oid"
+                + " JOIN pg_opclass opc ON opc.oid = i.indclass[0] WHERE c.oid = to_regclass(?)";
+        try (PreparedStatement selectStatement = connection.prepareStatement(selectSql)) {
+            selectStatement.setString(1, POSTGRESQL_TABLE_NAME);
+            selectStatement.setString(2, indexName);
+            try (ResultSet resultSet = selectStatement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return new IndexState(readRowCount(connection), null, null, null, false);
+                }
+                return new IndexState(Math.max(0, resultSet.getLong(1)), resultSet.getString(2),
+                        resultSet.getString(3), listsOption(resultSet.getArray(4)),
+                        resultSet.getBoolean(5));
+            }
+        }
+    }
+
+    // reltuples is -1 for a table which was never vacuumed or analyzed
+    private static long readRowCount(Connection connection) throws SQLException {
+        try (PreparedStatement selectStatement = connection.prepareStatement(
+                "SELECT reltuples::bigint FROM pg_class WHERE oid = to_regclass(?)")) {
+            selectStatement.setString(1, POSTGRESQL_TABLE_NAME);
+            try (ResultSet resultSet = selectStatement.executeQuery()) {
+                long rows = resultSet.next() ? resultSet.getLong(1) : 0;
+                if (rows >= 0) {
+                    return rows;
+                }
+            }
+        }
+        try (Statement statement = connection.createStatement();
+                ResultSet resultSet =
+                        statement.executeQuery("SELECT count(*) FROM " + POSTGRESQL_TABLE_NAME)) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+
+    // "lists" in the options of the index ({lists=100})
+    private static Integer listsOption(Array reloptions) throws SQLException {
+        if (reloptions == null) {
+            return null;
+        }
+        for (String option : (String[]) reloptions.getArray()) {
+            if (option.startsWith("lists=")) {
+                return Integer.valueOf(option.substring("lists=".length()));
+            }
+        }
+        return null;
+    }
+
+    private static boolean tryLock(Connection connection) throws SQLException {
+        try (PreparedStatement lockStatement =
+                connection.prepareStatement("SELECT pg_try_advisory_lock(hashtext(?))")) {
+            lockStatement.setString(1, INDEX_NAME);
+            try (ResultSet resultSet = lockStatement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean(1);
+            }
+        }
+    }
+
+    // The lock is held by the session, so it must be released before the connection is
+    // returned to the pool
+    private static void unlock(Connection connection) throws SQLException {
+        try (PreparedStatement unlockStatement =
+                connection.prepareStatement("SELECT pg_advisory_unlock(hashtext(?))")) {
+            unlockStatement.setString(1, INDEX_NAME);
+            unlockStatement.execute();
+        }
+    }
+
+    private static void execute(Connection connection, String sql) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.yoshio3;
+
+import java.util.Locale;
+
+// Representation of the embeddings in the vector index (pgvector 0.7.0 or later).
+// The table keeps the full vector (4-byte floats) ; the index can be built on an expression
+// which converts it to a smaller type, so that the index is smaller and stays in memory :
+// HALFVEC (2-byte floats, half of the size) or BINARY (1 bit per dimension, 1/32 of the size).
+// A search through a quantized index returns candidates, which are re-ranked with the exact
+// distance of the full vectors.
+public enum VectorQuantization {
+
+    NONE,
+    HALFVEC,
+    BINARY;
+
+    // Expression of the index for the column (or of the query for a "?" parameter)
+    public String expression(String column, int dimensions) {
+        return switch (this) {
+            case NONE -> column;
+            case HALFVEC -> "(" + column + "::halfvec(" + dimensions + "))";
+            case BINARY -> "(binary_quantize(" + column + ")::bit(" + dimensions + "))";
+        };
+    }
+
+    public String operatorClass(DistanceMetric metric) {
+        return switch (this) {
+            case NONE -> metric.operatorClass();
+            case HALFVEC -> metric.operatorClass("halfvec");
+            case BINARY -> "bit_hamming_ops";
+        };
+    }
+
+    public String operator(DistanceMetric metric) {
+        // The Hamming distance (number of different bits)
+        return this == BINARY ? "<~>" : metric.operator();
+    }
+
+    // "none", "halfvec" or "binary" (NONE if the name is unknown)
+    public static VectorQuantization fromName(String name) {
+        String normalized = name.trim().toUpperCase(Locale.ROOT);
+        for (VectorQuantization quantization : values()) {
+            if (quantization.name().equals(normalized)) {
+                return quantization;
+            }
+        }
+        return NONE;
+    }
+}
@@ -0,0 +1,6 @@
+package com.yoshio3;
+
+import java.util.UUID;
+
+public record VectorRecord(UUID id, float[] embedding, String originText, String fileName,
+        int pageNumber, int chunkIndex, int chunkCount) {}
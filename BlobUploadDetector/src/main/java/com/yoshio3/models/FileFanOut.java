@@ -0,0 +1,28 @@
+package com.yoshio3.models;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// Completion of a file which was fanned out into page ranges (stored in the same container as
+// the chunk documents). completedRanges contains the index of each range whose pages are all
+// committed, so a range which is processed again is not counted twice. stoppedRanges contains
+// the index of each range whose last delivery failed (it is processed again if the file is
+// uploaded again or the event is delivered again).
+// The document has no "status" field, so it is not listed as a chunk document.
+public record FileFanOut(String id, String fileName, String documentType, String blobETag,
+        int numberOfPages, int rangeCount, Map<String, Boolean> completedRanges,
+        Map<String, Boolean> stoppedRanges, boolean completed) {
+
+    public static final String DOCUMENT_TYPE = "fanout";
+
+    // Number of ranges which are completed or stopped
+    public int attemptedRanges() {
+        if (stoppedRanges == null) {
+            return completedRanges.size();
+        }
+        Set<String> ranges = new HashSet<>(completedRanges.keySet());
+        ranges.addAll(stoppedRanges.keySet());
+        return ranges.size();
+    }
+}
@@ -0,0 +1,16 @@
+package com.yoshio3.models;
+
+import java.util.List;
+
+// Progress of the ingestion of one file, or of one page range of a file in the fan-out mode
+// (stored in the same container as the chunk documents).
+// committedPage is the highest page such that all pages up to it are committed, lastPage is the
+// last page of the range (numberOfPages for a whole file), and inFlightChunks are the ids of the
+// chunks which were submitted but not yet written.
+// The document has no "status" field, so it is not listed as a chunk document.
+public record IngestionCheckpoint(String id, String fileName, String documentType,
+        String blobETag, int committedPage, int lastPage, int numberOfPages,
+        List<String> inFlightChunks, boolean completed) {
+
+    public static final String DOCUMENT_TYPE = "checkpoint";
+}
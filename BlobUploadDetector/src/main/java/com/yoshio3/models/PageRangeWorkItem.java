@@ -0,0 +1,17 @@
+package com.yoshio3.models;
+
+// Work item of the fan-out mode : the pages firstPage to lastPage (inclusive) of one version
+// (ETag) of a file. rangeIndex is the index of the range among the rangeCount ranges of the file.
+// A file which is not fanned out is processed as a single range of all its pages.
+public record PageRangeWorkItem(String fileName, String blobETag, int rangeIndex,
+        int rangeCount, int firstPage, int lastPage) {
+
+    // All pages of the file
+    public static PageRangeWorkItem wholeFile(String fileName, String blobETag) {
+        return new PageRangeWorkItem(fileName, blobETag, 0, 1, 1, Integer.MAX_VALUE);
+    }
+
+    public boolean isWholeFile() {
+        return rangeCount <= 1;
+    }
+}
@@ -0,0 +1,354 @@
+package com.yoshio3;
+
+import com.azure.ai.openai.models.ChatCompletions;
+import com.azure.core.exception.HttpResponseException;
+import com.azure.core.http.HttpHeaderName;
+import com.azure.core.http.HttpHeaders;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+// Limits the chat completions of all the clients : a request starts when fewer than the maximum
+// number of completions are running and the token bucket of the Tokens-Per-Minute (TPM) quota
+// has enough tokens for it. The waiting requests are taken :
+// - first the priority requests (the first result of each query, so that the user sees the
+//   beginning of an answer soon), then the others ;
+// - in turn from each user (round robin), so that the 5 requests of a query do not delay the
+//   queries of the other users.
+// The tokens of a request are estimated from the prompt and the expected length of the
+// completion, and corrected when the completion ends (with the usage of the response, or else
+// one token per streamed chunk).
+// A 429 response empties the bucket until the time given by the Retry-After header.
+@Component
+public class CompletionScheduler {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(CompletionScheduler.class);
+
+    private static final HttpHeaderName RETRY_AFTER_MS = HttpHeaderName.fromString("retry-after-ms");
+    private static final HttpHeaderName RETRY_AFTER = HttpHeaderName.fromString("retry-after");
+    // Wait time when a 429 response does not contain a Retry-After header
+    private static final long DEFAULT_RETRY_AFTER_MILLIS = 10_000;
+
+    // Maximum number of completions running at the same time
+    @Value("${azure.openai.completion.max.concurrent:20}")
+    private int MAX_CONCURRENT;
+
+    // Tokens-Per-Minute quota of the deployment (0 : no limit)
+    @Value("${azure.openai.completion.tokens.per.minute:0}")
+    private int TOKENS_PER_MINUTE;
+
+    // Expected number of tokens of a completion (reserved before the request)
+    @Value("${azure.openai.completion.expected.tokens:400}")
+    private int EXPECTED_COMPLETION_TOKENS;
+
+    // Maximum number of waiting requests (more requests are rejected)
+    @Value("${azure.openai.completion.max.queue:1000}")
+    private int MAX_QUEUE;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // Waiting requests of each user, in the order in which the users are served
+    private final Map<UUID, ArrayDeque<Ticket>> priorityQueues = new LinkedHashMap<>();
+    private final Map<UUID, ArrayDeque<Ticket>> normalQueues = new LinkedHashMap<>();
+    private int queued;
+    private int running;
+    // Token bucket (a burst of about 10 seconds of the quota, but at least one request)
+    private double capacity;
+    private double availableTokens;
+    private long lastRefillNanos;
+    // No request is started until this time (set from Retry-After)
+    private long blockedUntilNanos;
+    private boolean retryScheduled;
+    private ScheduledExecutorService retryExecutor;
+    private Timer priorityWaitTimer;
+    private Timer normalWaitTimer;
+
+    // Waiting request
+    private static final class Ticket {
+        private final UUID userId;
+        private final boolean priority;
+        private final int tokens;
+        private final MonoSink<Ticket> sink;
+        private final long queuedNanos = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+        // Tokens taken from the bucket when the request started (0 : no quota)
+        private double reservedTokens;
+
+        private Ticket(UUID userId, boolean priority, int tokens, MonoSink<Ticket> sink) {
+            this.userId = userId;
+            this.priority = priority;
+            this.tokens = tokens;
+            this.sink = sink;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        capacity = Math.max(TOKENS_PER_MINUTE / 6.0, EXPECTED_COMPLETION_TOKENS * 2.0);
+        availableTokens = capacity;
+        lastRefillNanos = System.nanoTime();
+        retryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "completion-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Gauge.builder("summary.completion.queue.depth", this, scheduler -> scheduler.queued())
+                .description("Chat completions waiting to start").register(meterRegistry);
+        Gauge.builder("summary.completion.running", this, scheduler -> scheduler.running())
+                .description("Chat completions running").register(meterRegistry);
+        priorityWaitTimer = waitTimer("high");
+        normalWaitTimer = waitTimer("normal");
+    }
+
+    @PreDestroy
+    public void destroy() {
+        retryExecutor.shutdownNow();
+    }
+
+    // Run the completion when it is its turn (the request is sent when the Flux is subscribed,
+    // and a request which is cancelled while it waits is removed from the queue)
+    public Flux<ChatCompletions> schedule(UUID userId, boolean priority, String prompt,
+            Supplier<Flux<ChatCompletions>> request) {
+        int promptTokens = estimateTokens(prompt);
+        return Mono.<Ticket>create(sink -> enqueue(
+                new Ticket(userId, priority, promptTokens + EXPECTED_COMPLETION_TOKENS, sink)))
+                .flatMapMany(ticket -> {
+                    AtomicInteger streamedChunks = new AtomicInteger();
+                    AtomicInteger usageTokens = new AtomicInteger();
+                    return request.get()
+                            .doOnNext(chatCompletions -> {
+                                streamedChunks.incrementAndGet();
+                                if (chatCompletions.getUsage() != null) {
+                                    usageTokens.set(chatCompletions.getUsage().getTotalTokens());
+                                }
+                            })
+                            .doOnError(this::onError)
+                            .doFinally(signal -> release(ticket, usageTokens.get() > 0
+                                    ? usageTokens.get()
+                                    : promptTokens + streamedChunks.get()));
+                });
+    }
+
+    // Number of tokens of a text (about 4 characters per token in English, 1 per character in
+    // Japanese : the UTF-8 length / 3 is close to or a little more than both)
+    static int estimateTokens(String text) {
+        int bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            bytes += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+        return bytes / 3 + 1;
+    }
+
+    private void enqueue(Ticket ticket) {
+        ticket.sink.onCancel(() -> cancel(ticket));
+        synchronized (this) {
+            if (queued >= MAX_QUEUE) {
+                // The ticket has no slot to release
+                ticket.released.set(true);
+                ticket.sink.error(new RejectedExecutionException("Too many completions waiting"));
+                return;
+            }
+            (ticket.priority ? priorityQueues : normalQueues)
+                    .computeIfAbsent(ticket.userId, userId -> new ArrayDeque<>()).add(ticket);
+            queued++;
+        }
+        dispatch();
+    }
+
+    // The client does not need the completion any more
+    private void cancel(Ticket ticket) {
+        synchronized (this) {
+            Map<UUID, ArrayDeque<Ticket>> queues =
+                    ticket.priority ? priorityQueues : normalQueues;
+            ArrayDeque<Ticket> queue = queues.get(ticket.userId);
+            if (queue != null && queue.remove(ticket)) {
+                queued--;
+                if (queue.isEmpty()) {
+                    queues.remove(ticket.userId);
+                }
+                return;
+            }
+        }
+        // It was cancelled while it was started : the slot is released (the reserved tokens
+        // are counted as used)
+        release(ticket, -1);
+    }
+
+    // The completion ended : the reserved tokens are corrected with the used tokens (-1 : the
+    // reserved tokens)
+    private void release(Ticket ticket, int usedTokens) {
+        if (!ticket.released.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (this) {
+            running--;
+            if (TOKENS_PER_MINUTE > 0 && usedTokens >= 0) {
+                availableTokens = Math.min(capacity,
+                        availableTokens + ticket.reservedTokens - usedTokens);
+            }
+        }
+        dispatch();
+    }
+
+    private void onError(Throwable error) {
+        if (!(error instanceof HttpResponseException exception)
+                || exception.getResponse() == null
+                || exception.getResponse().getStatusCode() != 429) {
+            return;
+        }
+        long retryAfterMillis = retryAfterMillis(exception.getResponse().getHeaders());
+        LOGGER.warn("Chat completions throttled (429), waiting {} ms", retryAfterMillis);
+        synchronized (this) {
+            availableTokens = 0;
+            blockedUntilNanos = Math.max(blockedUntilNanos,
+                    System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis));
+        }
+    }
+
+    // Start the waiting requests while there are free slots and tokens
+    private void dispatch() {
+        List<Ticket> started = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            refill(now);
+            while (running < MAX_CONCURRENT && queued > 0) {
+                Ticket ticket = peek();
+                long waitNanos = waitNanos(ticket, now);
+                if (waitNanos > 0) {
+                    scheduleRetry(waitNanos);
+                    break;
+                }
+                poll();
+                if (TOKENS_PER_MINUTE > 0) {
+                    ticket.reservedTokens = Math.min(ticket.tokens, capacity);
+                    availableTokens -= ticket.reservedTokens;
+                }
+                running++;
+                started.add(ticket);
+            }
+        }
+        long now = System.nanoTime();
+        for (Ticket ticket : started) {
+            (ticket.priority ? priorityWaitTimer : normalWaitTimer)
+                    .record(now - ticket.queuedNanos, TimeUnit.NANOSECONDS);
+            ticket.sink.success(ticket);
+        }
+    }
+
+    // Time to wait before the request can start (0 : it can start now)
+    private long waitNanos(Ticket ticket, long now) {
+        if (blockedUntilNanos > now) {
+            return blockedUntilNanos - now;
+        }
+        if (TOKENS_PER_MINUTE <= 0) {
+            return 0;
+        }
+        double missing = Math.min(ticket.tokens, capacity) - availableTokens;
+        return missing <= 0 ? 0
+                : (long) (missing / TOKENS_PER_MINUTE * TimeUnit.MINUTES.toNanos(1)) + 1;
+    }
+
+    private void refill(long now) {
+        if (TOKENS_PER_MINUTE > 0) {
+            double refilled = (double) (now - lastRefillNanos) / TimeUnit.MINUTES.toNanos(1)
+                    * TOKENS_PER_MINUTE;
+            availableTokens = Math.min(capacity, availableTokens + refilled);
+        }
+        lastRefillNanos = now;
+    }
+
+    private void scheduleRetry(long waitNanos) {
+        if (retryScheduled) {
+            return;
+        }
+        retryScheduled = true;
+        retryExecutor.schedule(() -> {
+            synchronized (this) {
+                retryScheduled = false;
+            }
+            dispatch();
+        }, waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // Next request : the first user of the priority queues, else of the other queues
+    private Ticket peek() {
+        Map<UUID, ArrayDeque<Ticket>> queues =
+                priorityQueues.isEmpty() ? normalQueues : priorityQueues;
+        return queues.values().iterator().next().peek();
+    }
+
+    // Take the next request, and move its user to the end of the turn
+    private void poll() {
+        Map<UUID, ArrayDeque<Ticket>> queues =
+                priorityQueues.isEmpty() ? normalQueues : priorityQueues;
+        Iterator<Map.Entry<UUID, ArrayDeque<Ticket>>> iterator = queues.entrySet().iterator();
+        Map.Entry<UUID, ArrayDeque<Ticket>> first = iterator.next();
+        first.getValue().poll();
+        iterator.remove();
+        if (!first.getValue().isEmpty()) {
+            queues.put(first.getKey(), first.getValue());
+        }
+        queued--;
+    }
+
+    private synchronized int queued() {
+        return queued;
+    }
+
+    private synchronized int running() {
+        return running;
+    }
+
+    private Timer waitTimer(String priority) {
+        return Timer.builder("summary.completion.wait")
+                .description("Time a chat completion waits before it starts")
+                .tag("priority", priority)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+    }
+
+    private static long retryAfterMillis(HttpHeaders headers) {
+        if (headers == null) {
+            return DEFAULT_RETRY_AFTER_MILLIS;
+        }
+        try {
+            String retryAfterMs = headers.getValue(RETRY_AFTER_MS);
+            if (retryAfterMs != null) {
+                return Long.parseLong(retryAfterMs.trim());
+            }
+            String retryAfter = headers.getValue(RETRY_AFTER);
+            if (retryAfter != null) {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+            }
+        } catch (NumberFormatException e) {
+            // The header may be an HTTP date
+        }
+        return DEFAULT_RETRY_AFTER_MILLIS;
+    }
+}
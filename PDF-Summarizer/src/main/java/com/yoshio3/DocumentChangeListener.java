@@ -0,0 +1,127 @@
+package com.yoshio3;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+// Receives the notifications sent by BlobUploadDetector when it writes or deletes the rows of a
+// file (NOTIFY), and passes the name of the file to the caches.
+// A thread listens to the notifications on a dedicated connection ; while it is not connected,
+// a change could be missed, so the caches must not be used (isListening()). When the connection
+// is opened again, the caches are cleared (the listeners are called with null).
+@Component
+public class DocumentChangeListener {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(DocumentChangeListener.class);
+
+    // Channel of the notifications (the same as AzurePostgresqlChangeNotificationChannel of
+    // BlobUploadDetector, empty : the caches which need the notifications are not used)
+    @Value("${azure.postgresql.change.notification.channel:document_search_changed}")
+    private String CHANGE_NOTIFICATION_CHANNEL;
+
+    // Time (in milliseconds) to wait before the connection of the listener is opened again
+    private static final long RECONNECT_DELAY_MILLIS = 5000;
+    // Time (in milliseconds) to wait for notifications in one call
+    private static final int NOTIFICATION_TIMEOUT_MILLIS = 1000;
+
+    @Autowired
+    private PostgreSQLUtil postgreSQLUtil;
+
+    // Called with the name of the changed file (null : all files)
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean listening;
+    private volatile boolean stopped;
+    private Thread listenerThread;
+
+    @PostConstruct
+    public void init() {
+        // The texts of the search results are cached by PostgreSQLUtil
+        addListener(fileName -> postgreSQLUtil.invalidateTexts());
+        if (!isEnabled()) {
+            return;
+        }
+        listenerThread = new Thread(this::listen, "document-change-listener");
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        stopped = true;
+        if (listenerThread != null) {
+            listenerThread.interrupt();
+        }
+    }
+
+    public boolean isEnabled() {
+        return !CHANGE_NOTIFICATION_CHANNEL.isBlank();
+    }
+
+    public boolean isListening() {
+        return listening;
+    }
+
+    public void addListener(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    // LISTEN on a dedicated connection, and call the listeners on each notification
+    private void listen() {
+        while (!stopped) {
+            try (Connection connection = postgreSQLUtil.openDedicatedConnection();
+                    Statement statement = connection.createStatement()) {
+                statement.execute(
+                        "LISTEN \"" + CHANGE_NOTIFICATION_CHANNEL.replace("\"", "") + "\"");
+                // The documents may have changed while the listener was not connected
+                notifyListeners(null);
+                listening = true;
+                LOGGER.info("Listening to the notifications of {}", CHANGE_NOTIFICATION_CHANNEL);
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                while (!stopped) {
+                    PGNotification[] notifications =
+                            pgConnection.getNotifications(NOTIFICATION_TIMEOUT_MILLIS);
+                    if (notifications == null) {
+                        continue;
+                    }
+                    for (PGNotification notification : notifications) {
+                        LOGGER.debug("Document changed: {}", notification.getParameter());
+                        notifyListeners(notification.getParameter());
+                    }
+                }
+            } catch (SQLException e) {
+                LOGGER.warn("Notification listener failure: {}", e.getMessage());
+            } finally {
+                listening = false;
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void notifyListeners(String fileName) {
+        for (Consumer<String> listener : listeners) {
+            try {
+                listener.accept(fileName);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Document change listener failure: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.yoshio3;
+
+import com.google.gson.stream.JsonReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Vectors and usage of an Embeddings API response.
+// The response is read with a streaming parser, so the values are stored directly into float[]
+// instead of a List<Double> per input (com.azure.ai.openai.models.Embeddings).
+// It is the same parser as in BlobUploadDetector (here for the embeddings of the queries).
+public record EmbeddingResponse(Map<Integer, float[]> embeddings, int promptTokens,
+        int totalTokens) {
+
+    // Number of values of a text-embedding-ada-002 vector (the array grows for other models)
+    private static final int DEFAULT_DIMENSIONS = 1536;
+
+    public static EmbeddingResponse parse(InputStream body) throws IOException {
+        Map<Integer, float[]> embeddings = new HashMap<>();
+        int promptTokens = 0;
+        int totalTokens = 0;
+        try (JsonReader reader =
+                new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "data" -> {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            readItem(reader, embeddings);
+                        }
+                        reader.endArray();
+                    }
+                    case "usage" -> {
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            switch (reader.nextName()) {
+                                case "prompt_tokens" -> promptTokens = reader.nextInt();
+                                case "total_tokens" -> totalTokens = reader.nextInt();
+                                default -> reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                    }
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        return new EmbeddingResponse(embeddings, promptTokens, totalTokens);
+    }
+
+    // {"object": "embedding", "index": 0, "embedding": [0.1, 0.2, ...]}
+    private static void readItem(JsonReader reader, Map<Integer, float[]> embeddings)
+            throws IOException {
+        int index = -1;
+        float[] embedding = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "index" -> index = reader.nextInt();
+                case "embedding" -> embedding = readVector(reader);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (index >= 0 && embedding != null) {
+            embeddings.put(index, embedding);
+        }
+    }
+
+    private static float[] readVector(JsonReader reader) throws IOException {
+        float[] values = new float[DEFAULT_DIMENSIONS];
+        int size = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = (float) reader.nextDouble();
+        }
+        reader.endArray();
+        return size == values.length ? values : Arrays.copyOf(values, size);
+    }
+}
@@ -0,0 +1,623 @@
+package com.yoshio3;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.yoshio3.entities.DocumentSummarizer;
+import com.yoshio3.entities.SearchFilter;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+// Similarity search of the documents in PostgreSQL (pgvector).
+// The table has an HNSW or IVFFlat index (managed by BlobUploadDetector), so the search is an
+// approximate nearest neighbor search. The size of the candidate list (hnsw.ef_search) and the
+// number of lists scanned (ivfflat.probes) are set for each query from the search mode :
+// a larger value returns the exact nearest neighbors more often, but takes longer.
+// When the index is built on a quantized representation (halfvec or binary), the search is done
+// in two phases : the index returns more candidates than needed, and the candidates are
+// re-ranked with the exact distance of the full vectors.
+// The search only returns the ids of the nearest rows : the texts of the final results are
+// read afterwards with one "WHERE id = ANY(?)" query (from the text table if the texts are
+// stored separately), and kept in a cache.
+// A search can be limited by a filter (file names, upload date, tags) : the names of the files
+// which match the filter are read from the table of the files, and the search has a
+// "fileName = ANY(?)" condition, which prunes the partitions of a table partitioned by the hash
+// of fileName, and can use the (fileName, pageNumber) index when only a few files match.
+// In the hybrid mode, a full-text search (tsvector column with a GIN index) finds the exact
+// terms of the query (part numbers, error codes) which the vector search may miss ; it runs
+// concurrently with the vector search, and the two rankings are fused.
+// The JDBC calls block, so the searches run on a bounded scheduler (not on the threads of
+// Netty), with the connections of a pool : the statements prepared on a connection are reused
+// by the next searches. The LISTEN of DocumentChangeListener uses a dedicated connection.
+// The latency of each part of the search is recorded in the "document.search" timer.
+@Component
+public class PostgreSQLUtil {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(PostgreSQLUtil.class);
+
+    @Value("${azure.postgresql.jdbcurl}")
+    private String POSTGRESQL_JDBC_URL;
+
+    @Value("${azure.postgresql.user}")
+    private String POSTGRESQL_USER;
+
+    @Value("${azure.postgresql.password}")
+    private String POSTGRESQL_PASSWORD;
+
+    @Value("${azure.postgresql.db.table.name}")
+    private String POSTGRESQL_TABLE_NAME;
+
+    // Table name of the texts (empty : the origntext column of the vector table)
+    @Value("${azure.postgresql.db.text.table.name:}")
+    private String POSTGRESQL_TEXT_TABLE_NAME;
+
+    // Maximum number of texts in the cache (0 : no cache)
+    @Value("${azure.postgresql.text.cache.size:10000}")
+    private long TEXT_CACHE_SIZE;
+
+    // Time (in seconds) a text is kept in the cache (a page can be uploaded again)
+    @Value("${azure.postgresql.text.cache.ttl.seconds:600}")
+    private long TEXT_CACHE_TTL_SECONDS;
+
+    // Table name of the files (upload date and tags, written by BlobUploadDetector)
+    @Value("${azure.postgresql.db.file.table.name:DOCUMENT_FILE}")
+    private String POSTGRESQL_FILE_TABLE_NAME;
+
+    // Iterative index scans of pgvector 0.8.0 for the filtered searches : "on" or "off".
+    // Without them, the index returns at most ef_search rows, which are filtered afterwards,
+    // so a filtered search may return fewer results than requested.
+    @Value("${azure.postgresql.vector.iterative.scan:off}")
+    private String VECTOR_ITERATIVE_SCAN;
+
+    // Hybrid search : full-text search fused with the vector search
+    @Value("${azure.postgresql.hybrid.enabled:false}")
+    private boolean HYBRID_ENABLED;
+
+    // Weights of the rankings in the fusion
+    @Value("${azure.postgresql.hybrid.vector.weight:1.0}")
+    private double HYBRID_VECTOR_WEIGHT;
+
+    @Value("${azure.postgresql.hybrid.text.weight:1.0}")
+    private double HYBRID_TEXT_WEIGHT;
+
+    // Constant k of the reciprocal rank fusion (a larger value gives less weight to the top ranks)
+    @Value("${azure.postgresql.hybrid.rrf.k:60}")
+    private int HYBRID_RRF_K;
+
+    // Number of rows returned by each search before the fusion
+    @Value("${azure.postgresql.hybrid.candidates:20}")
+    private int HYBRID_CANDIDATES;
+
+    // Number of threads running the full-text searches
+    @Value("${azure.postgresql.hybrid.threads:8}")
+    private int HYBRID_THREADS;
+
+    // Text search configuration of the tsvector column ("simple" keeps the words as they are)
+    @Value("${azure.postgresql.fulltext.config:simple}")
+    private String TEXT_SEARCH_CONFIG;
+
+    // Distance metric : "l2", "cosine" or "inner_product" (the same as VectorDistanceMetric of
+    // BlobUploadDetector, so that the index can be used)
+    @Value("${azure.postgresql.vector.distance.metric:l2}")
+    private String VECTOR_DISTANCE_METRIC;
+
+    // Representation of the embeddings in the index : "none", "halfvec" or "binary" (the same
+    // as VectorIndexQuantization of BlobUploadDetector)
+    @Value("${azure.postgresql.vector.quantization:none}")
+    private String VECTOR_QUANTIZATION;
+
+    // Number of dimensions of the embeddings (the quantized expressions need it)
+    @Value("${azure.postgresql.vector.dimensions:1536}")
+    private int VECTOR_DIMENSIONS;
+
+    // Number of candidates re-ranked per result (0 : 2 for halfvec, 10 for binary)
+    @Value("${azure.postgresql.vector.rerank.factor:0}")
+    private int RERANK_FACTOR;
+
+    // Search mode : "fast", "balanced", "accurate" or "exact" (the index is not used)
+    @Value("${azure.postgresql.vector.search.mode:balanced}")
+    private String VECTOR_SEARCH_MODE;
+
+    // hnsw.ef_search (0 : the value of the search mode)
+    @Value("${azure.postgresql.vector.hnsw.ef.search:0}")
+    private int HNSW_EF_SEARCH;
+
+    // ivfflat.probes (0 : the value of the search mode)
+    @Value("${azure.postgresql.vector.ivfflat.probes:0}")
+    private int IVFFLAT_PROBES;
+
+    // Maximum number of pooled connections
+    @Value("${azure.postgresql.pool.size:10}")
+    private int POOL_SIZE;
+
+    // Time (in milliseconds) to wait for a pooled connection before the search fails
+    @Value("${azure.postgresql.pool.connection.timeout.millis:5000}")
+    private long POOL_CONNECTION_TIMEOUT_MILLIS;
+
+    // Number of executions of a statement before it is prepared on the server (prepareThreshold
+    // of the JDBC driver, 0 : never, e.g. with PgBouncer in the transaction mode)
+    @Value("${azure.postgresql.prepare.threshold:1}")
+    private int PREPARE_THRESHOLD;
+
+    // Number of threads running the searches (0 : the pool size, or half of it in the hybrid
+    // mode, where a search uses two connections)
+    @Value("${azure.postgresql.search.threads:0}")
+    private int SEARCH_THREADS;
+
+    // Maximum number of searches waiting for a thread (more searches are rejected)
+    @Value("${azure.postgresql.search.queue.size:1000}")
+    private int SEARCH_QUEUE_SIZE;
+
+    // tsvector column (generated from origntext)
+    private static final String TEXT_SEARCH_COLUMN = "origntext_tsv";
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Cache<UUID, String> textCache;
+    private HikariDataSource dataSource;
+    private Scheduler searchScheduler;
+    private ExecutorService textSearchExecutor;
+    private Timer totalTimer;
+    private Timer vectorSearchTimer;
+    private Timer textSearchTimer;
+    private Timer textsTimer;
+    private String textTableName;
+    private DistanceMetric distanceMetric;
+    private VectorQuantization quantization;
+    private int rerankFactor;
+    private boolean exactSearch;
+    private boolean iterativeScan;
+    private int efSearch;
+    private int probes;
+
+    // Row returned by the vector search (without the text)
+    private record SearchHit(UUID id, String fileName, int pageNumber) {
+    }
+
+    @PostConstruct
+    public void init() {
+        textTableName = POSTGRESQL_TEXT_TABLE_NAME.isBlank() ? POSTGRESQL_TABLE_NAME
+                : POSTGRESQL_TEXT_TABLE_NAME;
+        textCache = Caffeine.newBuilder()
+                .maximumSize(TEXT_CACHE_SIZE)
+                .expireAfterWrite(Duration.ofSeconds(TEXT_CACHE_TTL_SECONDS))
+                .build();
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(POSTGRESQL_JDBC_URL);
+        config.setUsername(POSTGRESQL_USER);
+        config.setPassword(POSTGRESQL_PASSWORD);
+        config.setMaximumPoolSize(POOL_SIZE);
+        config.setConnectionTimeout(POOL_CONNECTION_TIMEOUT_MILLIS);
+        config.setPoolName("PDFSummarizerPool");
+        config.addDataSourceProperty("prepareThreshold", PREPARE_THRESHOLD);
+        // Do not fail the start up when PostgreSQL is temporarily unavailable
+        config.setInitializationFailTimeout(-1);
+        // Connections in use and waiting : hikaricp.connections.*
+        config.setMetricRegistry(meterRegistry);
+        dataSource = new HikariDataSource(config);
+        int searchThreads = SEARCH_THREADS > 0 ? SEARCH_THREADS
+                : Math.max(1, HYBRID_ENABLED ? POOL_SIZE / 2 : POOL_SIZE);
+        searchScheduler = Schedulers.newBoundedElastic(searchThreads, SEARCH_QUEUE_SIZE,
+                "postgresql-search");
+        if (HYBRID_ENABLED) {
+            // Not the search scheduler : a search waits for its full-text search, so both on the
+            // same threads could wait for each other
+            AtomicInteger textSearchThreads = new AtomicInteger();
+            textSearchExecutor = Executors.newFixedThreadPool(HYBRID_THREADS, runnable -> {
+                Thread thread = new Thread(runnable,
+                        "postgresql-text-search-" + textSearchThreads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        totalTimer = searchTimer("total");
+        vectorSearchTimer = searchTimer("vector");
+        textSearchTimer = searchTimer("text");
+        textsTimer = searchTimer("texts");
+        distanceMetric = DistanceMetric.fromName(VECTOR_DISTANCE_METRIC);
+        String mode = VECTOR_SEARCH_MODE.trim().toLowerCase(Locale.ROOT);
+        exactSearch = "exact".equals(mode);
+        iterativeScan = "on".equalsIgnoreCase(VECTOR_ITERATIVE_SCAN.trim());
+        // The exact search reads the full vectors of all rows
+        quantization = exactSearch ? VectorQuantization.NONE
+                : VectorQuantization.fromName(VECTOR_QUANTIZATION);
+        rerankFactor = RERANK_FACTOR > 0 ? RERANK_FACTOR
+                : quantization == VectorQuantization.BINARY ? 10 : 2;
+        switch (mode) {
+            case "fast" -> {
+                efSearch = 20;
+                probes = 1;
+            }
+            case "accurate" -> {
+                efSearch = 200;
+                probes = 40;
+            }
+            default -> {
+                // Default values of pgvector for HNSW, and a few lists for IVFFlat
+                efSearch = 40;
+                probes = 10;
+            }
+        }
+        if (HNSW_EF_SEARCH > 0) {
+            efSearch = HNSW_EF_SEARCH;
+        }
+        if (IVFFLAT_PROBES > 0) {
+            probes = IVFFLAT_PROBES;
+        }
+        LOGGER.info("Vector search: {} {} (hnsw.ef_search: {}, ivfflat.probes: {}, "
+                + "quantization: {})", distanceMetric, mode, exactSearch ? "-" : efSearch,
+                exactSearch ? "-" : probes,
+                quantization == VectorQuantization.NONE ? "-" : quantization + " x" + rerankFactor);
+    }
+
+    // Run the search on the search scheduler (the "total" timer includes the wait for a thread)
+    public Mono<List<DocumentSummarizer>> searchDocuments(String queryText, float[] embedding,
+            int limit, SearchFilter filter) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return Mono.fromCallable(
+                    () -> findMostSimilarDocuments(queryText, embedding, limit, filter))
+                    .subscribeOn(searchScheduler)
+                    .doFinally(signal -> totalTimer.record(System.nanoTime() - start,
+                            TimeUnit.NANOSECONDS));
+        });
+    }
+
+    // Find the documents of the files which match the filter, whose embedding is the nearest to
+    // the vector (or, in the hybrid mode, which are the best matches of both the vector search
+    // and the full-text search of the query text)
+    public List<DocumentSummarizer> findMostSimilarDocuments(String queryText, float[] embedding,
+            int limit, SearchFilter filter) throws SQLException {
+        List<DocumentSummarizer> docSummaryList = new ArrayList<>();
+        long start = System.nanoTime();
+        try (Connection connection = openConnection()) {
+            String[] fileNames = null;
+            if (!filter.isEmpty()) {
+                fileNames = findFileNames(connection, filter);
+                if (fileNames.length == 0) {
+                    LOGGER.debug("No file matches the filter: {}", filter);
+                    return docSummaryList;
+                }
+            }
+            List<SearchHit> hits;
+            if (HYBRID_ENABLED && queryText != null && !queryText.isBlank()) {
+                hits = hybridSearch(connection, queryText, embedding, limit, fileNames);
+            } else {
+                hits = vectorSearch(connection, embedding, limit, fileNames);
+            }
+            long textsStart = System.nanoTime();
+            Map<UUID, String> texts = loadTexts(connection, hits);
+            long textsNanos = System.nanoTime() - textsStart;
+            textsTimer.record(textsNanos, TimeUnit.NANOSECONDS);
+            for (SearchHit hit : hits) {
+                String text = texts.get(hit.id());
+                if (text == null) {
+                    // The row was deleted after the search
+                    continue;
+                }
+                DocumentSummarizer documentSummarizer = new DocumentSummarizer(hit.id(), null,
+                        text, hit.fileName(), hit.pageNumber());
+                docSummaryList.add(documentSummarizer);
+                LOGGER.debug("DocumentSummarizer: {}", documentSummarizer);
+            }
+            LOGGER.debug("Search ({}{}): {} results in {} ms (texts: {} ms)", VECTOR_SEARCH_MODE,
+                    HYBRID_ENABLED ? ", hybrid" : "", docSummaryList.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                    TimeUnit.NANOSECONDS.toMillis(textsNanos));
+        }
+        return docSummaryList;
+    }
+
+    // Hybrid search : the full-text search runs on another connection while the vector search
+    // runs on this one, and the two rankings are fused (reciprocal rank fusion)
+    private List<SearchHit> hybridSearch(Connection connection, String queryText,
+            float[] embedding, int limit, String[] fileNames) throws SQLException {
+        int candidates = Math.max(limit, HYBRID_CANDIDATES);
+        CompletableFuture<List<SearchHit>> textSearch = CompletableFuture.supplyAsync(() -> {
+            try (Connection textConnection = openConnection()) {
+                return textSearch(textConnection, queryText, candidates, fileNames);
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, textSearchExecutor);
+        List<SearchHit> vectorHits = vectorSearch(connection, embedding, candidates, fileNames);
+        List<SearchHit> textHits;
+        try {
+            textHits = textSearch.join();
+        } catch (CompletionException e) {
+            // The results of the vector search are still returned
+            LOGGER.warn("Full-text search failure: {}", e.getCause().getMessage());
+            textHits = List.of();
+        }
+        List<SearchHit> hits = fuse(vectorHits, textHits, limit);
+        LOGGER.debug("Hybrid search: {} vector hits, {} text hits, {} fused", vectorHits.size(),
+                textHits.size(), hits.size());
+        return hits;
+    }
+
+    // Reciprocal rank fusion : score = sum of weight / (k + rank) of the rankings of the document
+    private List<SearchHit> fuse(List<SearchHit> vectorHits, List<SearchHit> textHits,
+            int limit) {
+        Map<UUID, SearchHit> hitsById = new LinkedHashMap<>();
+        Map<UUID, Double> scores = new HashMap<>();
+        addRankScores(vectorHits, HYBRID_VECTOR_WEIGHT, hitsById, scores);
+        addRankScores(textHits, HYBRID_TEXT_WEIGHT, hitsById, scores);
+        // The sort is stable : on equal scores, the order of the vector search is kept
+        return hitsById.values().stream()
+                .sorted(Comparator.comparingDouble((SearchHit hit) -> scores.get(hit.id()))
+                        .reversed())
+                .limit(limit)
+                .toList();
+    }
+
+    private void addRankScores(List<SearchHit> hits, double weight,
+            Map<UUID, SearchHit> hitsById, Map<UUID, Double> scores) {
+        for (int rank = 0; rank < hits.size(); rank++) {
+            SearchHit hit = hits.get(rank);
+            hitsById.putIfAbsent(hit.id(), hit);
+            scores.merge(hit.id(), weight / (HYBRID_RRF_K + rank + 1), Double::sum);
+        }
+    }
+
+    // Full-text search : the rows whose tsvector column matches the query, by their rank
+    private List<SearchHit> textSearch(Connection connection, String queryText, int limit,
+            String[] fileNames) throws SQLException {
+        // The tsvector column is in the table of the texts
+        String from = textTableName.equals(POSTGRESQL_TABLE_NAME)
+                ? POSTGRESQL_TABLE_NAME + " AS v"
+                : textTableName + " AS t JOIN " + POSTGRESQL_TABLE_NAME + " AS v USING (id)";
+        String querySql = "SELECT v.id,v.filename,v.pageNumber FROM " + from
+                + ", websearch_to_tsquery(?::regconfig, ?) AS query"
+                + " WHERE " + TEXT_SEARCH_COLUMN + " @@ query"
+                + (fileNames == null ? "" : " AND v.fileName = ANY(?)")
+                + " ORDER BY ts_rank_cd(" + TEXT_SEARCH_COLUMN + ", query) DESC LIMIT " + limit;
+        long start = System.nanoTime();
+        List<SearchHit> hits = new ArrayList<>(limit);
+        try (PreparedStatement queryStatement = connection.prepareStatement(querySql)) {
+            queryStatement.setString(1, TEXT_SEARCH_CONFIG);
+            queryStatement.setString(2, queryText);
+            if (fileNames != null) {
+                queryStatement.setArray(3, connection.createArrayOf("text", fileNames));
+            }
+            try (ResultSet resultSet = queryStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    hits.add(new SearchHit(resultSet.getObject("id", UUID.class),
+                            resultSet.getString("filename"), resultSet.getInt("pageNumber")));
+                }
+            }
+        }
+        textSearchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return hits;
+    }
+
+    // Vector search : the rows whose embedding is the nearest to the vector
+    private List<SearchHit> vectorSearch(Connection connection, float[] embedding, int limit,
+            String[] fileNames) throws SQLException {
+        String columns = "id,filename,pageNumber";
+        String exactOrder = "embedding " + distanceMetric.operator() + " ?";
+        String where = fileNames == null ? "" : " WHERE fileName = ANY(?)";
+        String querySql;
+        int candidates = limit;
+        if (quantization == VectorQuantization.NONE) {
+            querySql = "SELECT " + columns + " FROM " + POSTGRESQL_TABLE_NAME + where
+                    + " ORDER BY " + exactOrder + " LIMIT " + limit + ";";
+        } else {
+            // The expressions must be the same as the expression of the index
+            candidates = limit * rerankFactor;
+            String quantizedOrder = quantization.expression("embedding", VECTOR_DIMENSIONS) + " "
+                    + quantization.operator(distanceMetric) + " "
+                    + quantization.expression("?", VECTOR_DIMENSIONS);
+            querySql = "SELECT " + columns + " FROM (SELECT " + columns + ",embedding FROM "
+                    + POSTGRESQL_TABLE_NAME + where
+                    + " ORDER BY " + quantizedOrder + " LIMIT " + candidates + ") AS candidates"
+                    + " ORDER BY " + exactOrder + " LIMIT " + limit + ";";
+        }
+        long start = System.nanoTime();
+        List<SearchHit> hits = new ArrayList<>(limit);
+        // The search settings are local to the transaction
+        connection.setAutoCommit(false);
+        try {
+            applySearchSettings(connection, candidates, fileNames != null);
+            try (PreparedStatement queryStatement = connection.prepareStatement(querySql)) {
+                PgVector queryVector = new PgVector(embedding);
+                int index = 1;
+                if (fileNames != null) {
+                    queryStatement.setArray(index++, connection.createArrayOf("text", fileNames));
+                }
+                queryStatement.setObject(index++, queryVector);
+                if (quantization != VectorQuantization.NONE) {
+                    // Query vector of the re-ranking
+                    queryStatement.setObject(index, queryVector);
+                }
+                try (ResultSet resultSet = queryStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        hits.add(new SearchHit(resultSet.getObject("id", UUID.class),
+                                resultSet.getString("filename"), resultSet.getInt("pageNumber")));
+                    }
+                }
+            }
+            connection.commit();
+        } finally {
+            connection.setAutoCommit(true);
+        }
+        vectorSearchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return hits;
+    }
+
+    public boolean isHybridEnabled() {
+        return HYBRID_ENABLED;
+    }
+
+    // Clear the cache of the texts (the documents changed)
+    public void invalidateTexts() {
+        textCache.invalidateAll();
+    }
+
+    // Borrow a connection from the pool (close() returns it to the pool).
+    // The query vector is sent in the binary format of pgvector.
+    Connection openConnection() throws SQLException {
+        Connection connection = dataSource.getConnection();
+        try {
+            PgVector.register(connection);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    // Open a connection outside of the pool, for a session which is kept open (LISTEN)
+    Connection openDedicatedConnection() throws SQLException {
+        return DriverManager.getConnection(POSTGRESQL_JDBC_URL, POSTGRESQL_USER,
+                POSTGRESQL_PASSWORD);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        searchScheduler.dispose();
+        if (textSearchExecutor != null) {
+            textSearchExecutor.shutdown();
+        }
+        dataSource.close();
+    }
+
+    // The percentiles are published for the load tests (document.search.percentile)
+    private Timer searchTimer(String part) {
+        return Timer.builder("document.search")
+                .description("Latency of the parts of the document search")
+                .tag("part", part)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+    }
+
+    // Names of the files which match the filter
+    private String[] findFileNames(Connection connection, SearchFilter filter)
+            throws SQLException {
+        if (!filter.hasFileMetadataFilter()) {
+            return filter.fileNames().toArray(String[]::new);
+        }
+        StringBuilder selectSql = new StringBuilder("SELECT fileName FROM ")
+                .append(POSTGRESQL_FILE_TABLE_NAME).append(" WHERE true");
+        List<Object> parameters = new ArrayList<>();
+        if (!filter.fileNames().isEmpty()) {
+            selectSql.append(" AND fileName = ANY(?)");
+            parameters.add(connection.createArrayOf("text", filter.fileNames().toArray()));
+        }
+        if (filter.uploadedFrom() != null) {
+            selectSql.append(" AND uploadedAt >= ?");
+            parameters.add(filter.uploadedFrom().atStartOfDay().atOffset(ZoneOffset.UTC));
+        }
+        if (filter.uploadedTo() != null) {
+            // The end date is included
+            selectSql.append(" AND uploadedAt < ?");
+            parameters.add(
+                    filter.uploadedTo().plusDays(1).atStartOfDay().atOffset(ZoneOffset.UTC));
+        }
+        if (!filter.tags().isEmpty()) {
+            selectSql.append(" AND tags && ?");
+            parameters.add(connection.createArrayOf("text", filter.tags().stream()
+                    .map(tag -> tag.trim().toLowerCase(Locale.ROOT)).toArray()));
+        }
+        List<String> fileNames = new ArrayList<>();
+        try (PreparedStatement selectStatement = connection.prepareStatement(selectSql.toString())) {
+            for (int i = 0; i < parameters.size(); i++) {
+                selectStatement.setObject(i + 1, parameters.get(i));
+            }
+            try (ResultSet resultSet = selectStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    fileNames.add(resultSet.getString(1));
+                }
+            }
+        }
+        return fileNames.toArray(String[]::new);
+    }
+
+    // Texts of the results : from the cache, and the others with one query
+    private Map<UUID, String> loadTexts(Connection connection, List<SearchHit> hits)
+            throws SQLException {
+        List<UUID> ids = hits.stream().map(SearchHit::id).toList();
+        Map<UUID, String> texts = new HashMap<>(textCache.getAllPresent(ids));
+        UUID[] missingIds = ids.stream().filter(id -> !texts.containsKey(id))
+                .toArray(UUID[]::new);
+        if (missingIds.length == 0) {
+            return texts;
+        }
+        String selectSql = "SELECT id,origntext FROM " + textTableName + " WHERE id = ANY(?)";
+        try (PreparedStatement selectStatement = connection.prepareStatement(selectSql)) {
+            selectStatement.setArray(1, connection.createArrayOf("uuid", missingIds));
+            try (ResultSet resultSet = selectStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    UUID id = resultSet.getObject("id", UUID.class);
+                    String text = resultSet.getString("origntext");
+                    if (text != null) {
+                        texts.put(id, text);
+                        textCache.put(id, text);
+                    }
+                }
+            }
+        }
+        return texts;
+    }
+
+    // SET LOCAL of the search settings (set_config accepts bind parameters)
+    private void applySearchSettings(Connection connection, int limit, boolean filtered)
+            throws SQLException {
+        if (exactSearch) {
+            // Sequential scan : the exact nearest neighbors
+            try (PreparedStatement setStatement = connection
+                    .prepareStatement("SELECT set_config('enable_indexscan', 'off', true)")) {
+                setStatement.execute();
+            }
+            return;
+        }
+        try (PreparedStatement setStatement = connection.prepareStatement(
+                "SELECT set_config('hnsw.ef_search', ?, true), set_config('ivfflat.probes', ?, true)")) {
+            // HNSW returns at most ef_search rows
+            setStatement.setString(1, String.valueOf(Math.max(efSearch, limit)));
+            setStatement.setString(2, String.valueOf(probes));
+            setStatement.execute();
+        }
+        if (filtered && iterativeScan) {
+            // The index is scanned until enough rows match the filter (IVFFlat only supports
+            // the relaxed order : the results may be slightly out of order)
+            try (PreparedStatement setStatement = connection.prepareStatement(
+                    "SELECT set_config('hnsw.iterative_scan', 'strict_order', true),"
+                            + " set_config('ivfflat.iterative_scan', 'relaxed_order', true)")) {
+                setStatement.execute();
+            }
+        }
+    }
+}
@@ -1,22 +1,20 @@
 package com.yoshio3;
 
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Duration;
+import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.format.annotation.DateTimeFormat.ISO;
 import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
@@ -35,16 +33,22 @@ import com.azure.ai.openai.models.ChatMessageDelta;
 import com.azure.ai.openai.models.ChatRole;
 import com.azure.ai.openai.models.EmbeddingsOptions;
 import com.azure.core.credential.AzureKeyCredential;
-import com.google.gson.Gson;
+import com.azure.core.http.rest.RequestOptions;
+import com.azure.core.util.BinaryData;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.yoshio3.entities.CreateAreaInHTML;
 import com.yoshio3.entities.CreateLinkInHTML;
 import com.yoshio3.entities.CreateMessageInHTML;
 import com.yoshio3.entities.DocumentSummarizer;
+import com.yoshio3.entities.EventInHTML;
+import com.yoshio3.entities.SearchFilter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import jakarta.annotation.PostConstruct;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.publisher.Sinks;
-import reactor.core.publisher.Sinks.EmitResult;
 
 @Controller
 @Component
@@ -64,17 +68,21 @@ public class SSEOpenAIController {
     @Value("${azure.openai.api.key}")
     private String OPENAI_API_KEY;
 
-    @Value("${azure.postgresql.jdbcurl}")
-    private String POSTGRESQL_JDBC_URL;
+    // Maximum number of query embeddings in the cache (0 : no cache)
+    @Value("${azure.openai.embedding.cache.size:1000}")
+    private long EMBEDDING_CACHE_SIZE;
 
-    @Value("${azure.postgresql.user}")
-    private String POSTGRESQL_USER;
+    // Time (in seconds) a query embedding is kept in the cache
+    @Value("${azure.openai.embedding.cache.ttl.seconds:86400}")
+    private long EMBEDDING_CACHE_TTL_SECONDS;
 
-    @Value("${azure.postgresql.password}")
-    private String POSTGRESQL_PASSWORD;
+    // Maximum number of strings from Azure OpenAI sent in one addMessage event
+    @Value("${azure.openai.stream.frame.max.deltas:16}")
+    private int FRAME_MAX_DELTAS;
 
-    @Value("${azure.postgresql.db.table.name}")
-    private String POSTGRESQL_TABLE_NAME;
+    // Maximum time (in milliseconds) a string from Azure OpenAI waits for the next ones
+    @Value("${azure.openai.stream.frame.max.millis:50}")
+    private long FRAME_MAX_MILLIS;
 
     @Value("${azure.blobstorage.name}")
     private String BLOB_STORAGE_NAME;
@@ -85,6 +93,10 @@ public class SSEOpenAIController {
     // Maximum number of results to be returned by the search process
     private static final int MAX_RESULT = 5;
 
+    // Maximum number of summaries streamed at the same time to a client (the next ones start
+    // when one completes)
+    private static final int MAX_CONCURRENT_SUMMARIES = 16;
+
     private static final String TEXT_EMBEDDING_ADA = "text-embedding-ada-002";
 
     private final static String SYSTEM_DEFINITION = """
@@ -93,23 +105,54 @@ public class SSEOpenAIController {
                     and provides the summarized information to the users in an easily understandable and polite manner.
             """;
 
-    // Sinks for accepting requests from clients (Sinks for sending and receiving one-to-one)
-    private static Map<UUID, Sinks.Many<String>> userSinks;
+    @Autowired
+    private CosmosDBUtil cosmosDBUtil;
 
-    // Static Initializer
-    static {
-        userSinks = new ConcurrentHashMap<>();
-    }
+    @Autowired
+    private PostgreSQLUtil postgreSQLUtil;
 
     @Autowired
-    private CosmosDBUtil cosmosDBUtil;
+    private SearchResultCache searchResultCache;
+
+    @Autowired
+    private SummaryCache summaryCache;
+
+    @Autowired
+    private SseEventEncoder sseEventEncoder;
+
+    @Autowired
+    private CompletionScheduler completionScheduler;
+
+    // Sinks for accepting requests from clients (Sinks for sending and receiving one-to-one)
+    @Autowired
+    private UserSinkRegistry userSinkRegistry;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
 
     private OpenAIAsyncClient client;
 
+    // Embeddings of the queries (users often repeat the same questions)
+    private Cache<String, float[]> queryEmbeddingCache;
+
+    private Counter deltaCounter;
+    private Counter frameCounter;
+
     @PostConstruct
     public void init() {
         client = new OpenAIClientBuilder().endpoint(OPENAI_URL)
                 .credential(new AzureKeyCredential(OPENAI_API_KEY)).buildAsyncClient();
+        queryEmbeddingCache = Caffeine.newBuilder()
+                .maximumSize(EMBEDDING_CACHE_SIZE)
+                .expireAfterWrite(Duration.ofSeconds(EMBEDDING_CACHE_TTL_SECONDS))
+                .recordStats()
+                .build();
+        // Hit rate : cache.gets{cache=query.embedding,result=hit|miss}
+        CaffeineCacheMetrics.monitor(meterRegistry, queryEmbeddingCache, "query.embedding");
+        deltaCounter = Counter.builder("summary.stream.deltas")
+                .description("Strings received from Azure OpenAI").register(meterRegistry);
+        frameCounter = Counter.builder("summary.stream.frames")
+                .description("addMessage events sent to the clients").register(meterRegistry);
     }
 
     // Return index.html
@@ -124,26 +167,45 @@ public class SSEOpenAIController {
     // content (1-to-many) like a chat
     @GetMapping(path = "/openai-gpt4-sse-stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
     @ResponseBody
-    public Flux<String> sseStream(@RequestParam UUID userId) {
-        Sinks.Many<String> userSink = getUserSink(userId);
-        if (userSink == null) {
-            userSink = createUserSink(userId);
-        }
-        LOGGER.trace("USER ID IS ADDED: {}}", userId);
-        return userSink.asFlux().delayElements(Duration.ofMillis(10));
+    public Mono<Void> sseStream(@RequestParam UUID userId, ServerHttpResponse response) {
+        // The events of the documents are merged as the client requests them, and each event
+        // is encoded into a buffer of the response and flushed
+        var events = userSinkRegistry.subscribe(userId)
+                .flatMap(documentEvents -> documentEvents, MAX_CONCURRENT_SUMMARIES);
+        response.getHeaders().setContentType(MediaType.TEXT_EVENT_STREAM);
+        return response.writeAndFlushWith(events.map(event -> Flux.just(
+                sseEventEncoder.encode(event, response.bufferFactory()))));
     }
 
+    // The search can be limited with the optional parameters :
+    // fileName and tag (repeatable), uploadedFrom and uploadedTo (yyyy-MM-dd)
     @PostMapping("/openai-gpt4-sse-submit")
     @ResponseBody
-    public void openaiGpt4Sse(@RequestBody String inputText, @RequestParam UUID userId) {
-        var userSink = getUserSink(userId);
-        LOGGER.debug("InputText --------------: {}", inputText);
+    public void openaiGpt4Sse(@RequestBody String inputText, @RequestParam UUID userId,
+            @RequestParam(required = false) List<String> fileName,
+            @RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE) LocalDate uploadedFrom,
+            @RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE) LocalDate uploadedTo,
+            @RequestParam(required = false) List<String> tag) {
+        var filter = new SearchFilter(fileName, uploadedFrom, uploadedTo, tag);
+        LOGGER.debug("InputText --------------: {} {}", inputText, filter);
         // Receive input from the user and search for documents from PostgreSQL's Vector DB
-        findMostSimilarString(inputText).subscribe(findMostSimilarString -> {
+        findMostSimilarString(inputText, filter).subscribe(findMostSimilarString -> {
+            if (findMostSimilarString.isEmpty()) {
+                userSinkRegistry.emit(userId,
+                        createNoticeEvents("No documents were found for the question."));
+                return;
+            }
             // Based on document search results,invoke OpenAI to summarizes and sends results to the client
-            findMostSimilarString.forEach(docSummary -> {
-                requestOpenAIToGetSummaryAndSendMessageToClient(docSummary, inputText, userSink);
-            });
+            // The first result has the priority (the user sees the beginning of an answer soon)
+            for (int i = 0; i < findMostSimilarString.size(); i++) {
+                requestOpenAIToGetSummaryAndSendMessageToClient(findMostSimilarString.get(i),
+                        inputText, userId, i == 0);
+            }
+        }, error -> {
+            // The embedding of the query or the search failed : the client is told of it
+            LOGGER.error("Search failure for User ID {}: {}", userId, error.getMessage(), error);
+            userSinkRegistry.emit(userId, createNoticeEvents(
+                    "The documents could not be searched. Please try again later."));
         });
     }
 
@@ -155,48 +217,93 @@ public class SSEOpenAIController {
     }
 
     // Create a document summary of the search results sent to OpenAI and send it to the client via Stream
-    private void requestOpenAIToGetSummaryAndSendMessageToClient(DocumentSummarizer docSummary, String inputText, Sinks.Many<String> userSink) {
+    private void requestOpenAIToGetSummaryAndSendMessageToClient(DocumentSummarizer docSummary,
+            String inputText, UUID userId, boolean firstResult) {
         LOGGER.debug("Origin --------------: {}", docSummary.origntext());
 
         var input = createChatMessages(docSummary, inputText);
-        LOGGER.debug("User Sink: {}", userSink);
+        LOGGER.debug("User ID: {}", userId);
         LOGGER.debug(input);
         var chatMessages = createMessages(input);
         LOGGER.debug("OpenAI Model : {}", OPENAI_MODEL_NAME);
 
-        // Send a request to OpenAI and send the result to the client
-        client.getChatCompletionsStream(OPENAI_MODEL_NAME, new ChatCompletionsOptions(chatMessages))
-                .doOnSubscribe(subscription -> {
-                    // Send a request event to create a DIV area in HTML to display the link and the resulting string
-                    sendCreateAreaEvent(userSink, docSummary);
-                    // Send a request event to create a link in HTML to display the link
-                    sendCreateLinkEvent(userSink, docSummary);
-                })
-                .subscribe(chatCompletions -> {
-                    // Send the result string from OpenAI to Client via Streaming
-                    sendChatCompletionMessages(userSink, docSummary, chatCompletions, inputText);
-                }, error -> {
-                    LOGGER.error("Error Occurred: {}", error.getMessage());
-                    userSink.tryEmitError(error);
-                }, () -> {
-                    LOGGER.debug("Completed");
-                });
+        Flux<EventInHTML> messageEvents;
+        // The same question on the same document : replay the cached summary at once
+        var queryText = normalizeQuery(inputText);
+        var cachedSummary = summaryCache.get(docSummary, queryText, OPENAI_MODEL_NAME);
+        if (cachedSummary != null) {
+            LOGGER.debug("Summary cache hit: {}", docSummary.id());
+            messageEvents = Flux.just(createAddMessageEvent(docSummary, cachedSummary));
+        } else {
+            // Send a request to OpenAI when the client requests the events, and when it is its
+            // turn in the completions of all the clients (each subscription has its summary)
+            messageEvents = Flux.defer(() -> {
+                long cacheGeneration = summaryCache.generation();
+                var summary = new StringBuilder();
+                return completionScheduler
+                        .schedule(userId, firstResult, SYSTEM_DEFINITION + input,
+                                () -> client.getChatCompletionsStream(OPENAI_MODEL_NAME,
+                                        new ChatCompletionsOptions(chatMessages)))
+                        .flatMapIterable(SSEOpenAIController::getContents)
+                        .doOnNext(content -> {
+                            deltaCounter.increment();
+                            summary.append(content);
+                        })
+                        .doOnComplete(() -> {
+                            LOGGER.debug("Completed");
+                            // Only the completed summary is cached (not a failed stream)
+                            summaryCache.put(cacheGeneration, docSummary, queryText,
+                                    OPENAI_MODEL_NAME, summary.toString());
+                        })
+                        // Send the strings received within a few milliseconds in one event
+                        .bufferTimeout(FRAME_MAX_DELTAS, Duration.ofMillis(FRAME_MAX_MILLIS))
+                        // The timer of bufferTimeout emits without demand : the events wait here
+                        // (at most the events of one completion)
+                        .onBackpressureBuffer()
+                        .map(contents -> {
+                            frameCounter.increment();
+                            return createAddMessageEvent(docSummary, String.join("", contents));
+                        })
+                        .onErrorResume(error -> {
+                            // The summaries of the other documents continue
+                            LOGGER.error("Error Occurred: {}", error.getMessage());
+                            return Flux.empty();
+                        });
+            });
+        }
+        // Create a DIV area in HTML and the link, then display the result string
+        var events = Flux.concat(
+                Flux.just(createAreaEvent(docSummary), createLinkEvent(docSummary)),
+                messageEvents);
+        // The events wait in the sink if the client has not opened the stream yet
+        userSinkRegistry.emit(userId, events);
+    }
+
+    // Events to display a message (no result or an error) in a new area
+    private Flux<EventInHTML> createNoticeEvents(String message) {
+        var areaId = UUID.randomUUID().toString();
+        return Flux.just(new CreateAreaInHTML("create", areaId),
+                new CreateMessageInHTML("addMessage", areaId, message));
+    }
+
+    // Strings of a response of the stream from OpenAI
+    private static List<String> getContents(ChatCompletions chatCompletions) {
+        return chatCompletions.getChoices().stream().map(ChatChoice::getDelta)
+                .map(ChatMessageDelta::getContent)
+                .filter(content -> content != null)
+                .toList();
     }
 
-    // Send a request event to create a DIV area in HTML to display the link and the resulting string
-    private void sendCreateAreaEvent(Sinks.Many<String> userSink, DocumentSummarizer docSummary) {
+    // Event to create a DIV area in HTML to display the link and the resulting string
+    private EventInHTML createAreaEvent(DocumentSummarizer docSummary) {
         var documentID = docSummary.id().toString();
         var createArea = new CreateAreaInHTML("create", documentID);
-        var gson = new Gson();
-        var jsonCreateArea = gson.toJson(createArea);
-        LOGGER.debug("jsonCreateArea: {}", jsonCreateArea);
-        userSink.tryEmitNext(jsonCreateArea);
-        // wait few mill seconds
-        intervalToSendClient();
+        LOGGER.debug("Create Area: {}", createArea);
+        return createArea;
     }
 
-    // Send a request event to create a link in HTML to display the link
-    private void sendCreateLinkEvent(Sinks.Many<String> userSink, DocumentSummarizer docSummary) {
+    // Event to create a link in HTML to display the link
+    private EventInHTML createLinkEvent(DocumentSummarizer docSummary) {
         var fileName = docSummary.filename();
         var pageNumber = docSummary.pageNumber();
         var documentID = docSummary.id().toString();
@@ -206,36 +313,15 @@ public class SSEOpenAIController {
                 + docSummary.pageNumber();
 
         var createLinkRecord = new CreateLinkInHTML("createLink", documentID, URL, pageNumber, fileName);
-        var gson = new Gson();
-        var jsonLink = gson.toJson(createLinkRecord);
-        LOGGER.debug("JSON Create Link: {}", jsonLink);
-        userSink.tryEmitNext(jsonLink);
-        // wait few mill seconds
-        intervalToSendClient();
+        LOGGER.debug("Create Link: {}", createLinkRecord);
+        return createLinkRecord;
     }
 
-    // Send a request event to display the message character by character in the HTML
-    private void sendChatCompletionMessages(Sinks.Many<String> userSink, DocumentSummarizer docSummary,
-            ChatCompletions chatCompletions, String inputText) {
-        var documentID = docSummary.id().toString();
-
-        chatCompletions.getChoices().stream().map(ChatChoice::getDelta)
-                .map(ChatMessageDelta::getContent)
-                .filter(content -> content != null)
-                .forEach(content -> {
-                    if (content.contains(" ")) {
-                        content = content.replace(" ", "<SPECIAL_WHITE_SPACE>");
-                    }
-                    LOGGER.debug(content);
-                    var createMessage = new CreateMessageInHTML("addMessage", documentID, content);
-                    var gson = new Gson();
-                    var jsonMessage = gson.toJson(createMessage);
-                    LOGGER.debug("JSON Message: {}", jsonMessage);
-                    var result = userSink.tryEmitNext(jsonMessage);
-                    showDetailErrorReasonForSSE(result, content, inputText);
-                    // wait few mill seconds
-                    intervalToSendClient();
-                });
+    // Event to add the string to the message in the HTML (the string is sent as it is : the
+    // spaces and line breaks are escaped by the JSON of SseEventEncoder)
+    private EventInHTML createAddMessageEvent(DocumentSummarizer docSummary, String content) {
+        LOGGER.trace(content);
+        return new CreateMessageInHTML("addMessage", docSummary.id().toString(), content);
     }
 
     @GetMapping("/listAllRegisteredContents")
@@ -254,19 +340,6 @@ public class SSEOpenAIController {
         return "listAllFailedContents";
     }
 
-    // Create Sinks for accessed User
-    private Sinks.Many<String> createUserSink(UUID userId) {
-        Sinks.Many<String> userSink = Sinks.many().multicast().directBestEffort();
-        userSinks.put(userId, userSink);
-        LOGGER.debug("User ID: {} User Sink: {} is Added.", userId, userSink);
-        return userSink;
-    }
-
-    // Get User Sinks
-    private Sinks.Many<String> getUserSink(UUID userId) {
-        return userSinks.get(userId);
-    }
-
     /**
      * Crete ChatMessage list
      */
@@ -277,71 +350,56 @@ public class SSEOpenAIController {
         return chatMessages;
     }
 
-    // Show Error Message when SSE failed to send the message
-    private void showDetailErrorReasonForSSE(EmitResult result, String returnValue, String data) {
-        if (result.isFailure()) {
-            LOGGER.error("Failure: {}", returnValue + " " + data);
-            if (result == EmitResult.FAIL_OVERFLOW) {
-                LOGGER.error("Overflow: {}", returnValue + " " + data);
-            } else if (result == EmitResult.FAIL_NON_SERIALIZED) {
-                LOGGER.error("Non-serialized: {}", returnValue + " " + data);
-            } else if (result == EmitResult.FAIL_ZERO_SUBSCRIBER) {
-                LOGGER.error("Zero subscriber: {}", returnValue + " " + data);
-            } else if (result == EmitResult.FAIL_TERMINATED) {
-                LOGGER.error("Terminated: {}", returnValue + " " + data);
-            } else if (result == EmitResult.FAIL_CANCELLED) {
-                LOGGER.error("Cancelled: {}", returnValue + " " + data);
-            }
-        }
-    }
-
     // Spring Data JPA is not available at this time
     // Reason: 
     // Spring Data JPA could not handle the PostgreSQL vector type, 
     // even if it used Native Query. So I used standard JDBC.
-    public Mono<List<DocumentSummarizer>> findMostSimilarString(String inputData) {
-        EmbeddingsOptions embeddingsOptions = new EmbeddingsOptions(Arrays.asList(inputData));
-
-        return client.getEmbeddings(TEXT_EMBEDDING_ADA, embeddingsOptions)
-                .flatMap(embeddings -> {
-                    List<DocumentSummarizer> docSummaryList = new ArrayList<>();
-                    List<Double> embedding = embeddings.getData().stream().findFirst().get().getEmbedding();
-
-                    try (var connection = DriverManager.getConnection(POSTGRESQL_JDBC_URL,
-                            POSTGRESQL_USER, POSTGRESQL_PASSWORD)) {
-                        String array = embedding.toString();
-                        LOGGER.debug("Embedding: \n{}", array);
-
-                        String querySql = "SELECT id,origntext,filename,pageNumber FROM " + POSTGRESQL_TABLE_NAME
-                                + " ORDER BY embedding <-> ?::vector LIMIT " + MAX_RESULT + ";";
-
-                        PreparedStatement queryStatement = connection.prepareStatement(querySql);
-                        queryStatement.setString(1, array);
-                        ResultSet resultSet = queryStatement.executeQuery();
-                        LOGGER.debug("resultSet: {}", resultSet);
-                        while (resultSet.next()) {
-                            DocumentSummarizer documentSummarizer = new DocumentSummarizer(
-                                    UUID.fromString(resultSet.getString("id")),
-                                    null,
-                                    resultSet.getString("origntext"),
-                                    resultSet.getString("filename"),
-                                    resultSet.getInt("pageNumber"));
-                            docSummaryList.add(documentSummarizer);
-                            LOGGER.debug("DocumentSummarizer: {}", documentSummarizer);
-                        }
-                    } catch (SQLException e) {
-                        LOGGER.error("Connection failure: {}", e.getMessage());
+    public Mono<List<DocumentSummarizer>> findMostSimilarString(String inputData,
+            SearchFilter filter) {
+        String queryText = normalizeQuery(inputData);
+        return getQueryEmbedding(queryText)
+                .flatMap(embedding -> {
+                    List<DocumentSummarizer> docSummaryList =
+                            searchResultCache.find(queryText, embedding, filter, MAX_RESULT);
+                    if (docSummaryList != null) {
+                        return Mono.just(docSummaryList);
                     }
-                    return Mono.just(docSummaryList);
+                    long cacheGeneration = searchResultCache.generation();
+                    // The blocking search runs on the search scheduler of PostgreSQLUtil (a failure,
+                    // as a SQLException or a full search queue, is reported to the client)
+                    return postgreSQLUtil.searchDocuments(queryText, embedding, MAX_RESULT, filter)
+                            .doOnNext(results -> searchResultCache.put(cacheGeneration, queryText,
+                                    embedding, filter, MAX_RESULT, results));
                 });
     }
 
-    private void intervalToSendClient() {
-        try {
-            TimeUnit.MILLISECONDS.sleep(20);
-        } catch (InterruptedException e) {
-            LOGGER.error("Error Occurred: {}", e.getMessage());
-            Thread.currentThread().interrupt();
+    // Embedding of the query, from the cache or from Azure OpenAI
+    private Mono<float[]> getQueryEmbedding(String queryText) {
+        float[] cachedEmbedding = queryEmbeddingCache.getIfPresent(queryText);
+        if (cachedEmbedding != null) {
+            return Mono.just(cachedEmbedding);
         }
+        // The response is parsed directly into float[] (not the List<Double> of Embeddings)
+        BinaryData request = BinaryData.fromObject(new EmbeddingsOptions(List.of(queryText)));
+        return client.getEmbeddingsWithResponse(TEXT_EMBEDDING_ADA, request, new RequestOptions())
+                .map(response -> {
+                    float[] embedding;
+                    try {
+                        embedding = EmbeddingResponse.parse(response.getValue().toStream())
+                                .embeddings().get(0);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    if (embedding == null) {
+                        throw new IllegalStateException("No embedding in the response");
+                    }
+                    queryEmbeddingCache.put(queryText, embedding);
+                    return embedding;
+                });
+    }
+
+    // The same question typed with other spaces or line breaks has the same key
+    private static String normalizeQuery(String inputData) {
+        return inputData.strip().replaceAll("\\s+", " ");
     }
 }
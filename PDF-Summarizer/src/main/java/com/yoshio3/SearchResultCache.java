@@ -0,0 +1,197 @@
+package com.yoshio3;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.yoshio3.entities.DocumentSummarizer;
+import com.yoshio3.entities.SearchFilter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+// Cache of the search results (semantic cache) : a new query whose vector is within a distance
+// (cosine) of the vector of a cached query, with the same filter, returns the cached results
+// without searching PostgreSQL again.
+// The same query text is found by its key ; the other queries are compared with the cached
+// queries of the same filter only, so the cost of a lookup grows with the number of cached
+// searches of one filter (at most the size of the cache, about 1 ms for 1000 vectors).
+// The cache is cleared when the documents change (DocumentChangeListener) ; while the listener is
+// not connected, the cache is not used (a change could be missed).
+@Component
+public class SearchResultCache {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(SearchResultCache.class);
+
+    // Maximum number of cached searches (0 : no cache)
+    @Value("${azure.search.result.cache.size:1000}")
+    private long CACHE_SIZE;
+
+    // Time (in seconds) the results of a search are kept
+    @Value("${azure.search.result.cache.ttl.seconds:1800}")
+    private long CACHE_TTL_SECONDS;
+
+    // Maximum cosine distance between the query vectors (0 : the same vector only)
+    @Value("${azure.search.result.cache.max.distance:0.02}")
+    private double MAX_DISTANCE;
+
+    @Autowired
+    private PostgreSQLUtil postgreSQLUtil;
+
+    @Autowired
+    private DocumentChangeListener documentChangeListener;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Cache<SearchKey, CachedSearch> cache;
+    // Keys of the cached searches of each filter (the searches compared with a new query)
+    private final Map<SearchScope, Set<SearchKey>> scopes = new ConcurrentHashMap<>();
+    // Incremented when the cache is cleared : the results of a search which started before are
+    // not cached
+    private final AtomicLong generation = new AtomicLong();
+    private Counter hitCounter;
+    private Counter missCounter;
+
+    // Filter and number of results : only the searches of the same scope are comparable
+    private record SearchScope(SearchFilter filter, int limit) {
+    }
+
+    // Normalized query text in a scope
+    private record SearchKey(String queryText, SearchScope scope) {
+    }
+
+    // Query (normalized text and unit vector) and its results
+    private record CachedSearch(String queryText, float[] unitVector,
+            List<DocumentSummarizer> results) {
+    }
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(CACHE_SIZE)
+                .expireAfterWrite(Duration.ofSeconds(CACHE_TTL_SECONDS))
+                // Called in the removal of the entry (before the key can be cached again)
+                .evictionListener((SearchKey key, CachedSearch cached, RemovalCause cause) ->
+                        removeFromScope(key))
+                .build();
+        hitCounter = Counter.builder("search.result.cache.requests").tag("result", "hit")
+                .description("Searches of the semantic result cache").register(meterRegistry);
+        missCounter = Counter.builder("search.result.cache.requests").tag("result", "miss")
+                .description("Searches of the semantic result cache").register(meterRegistry);
+        Gauge.builder("search.result.cache.size", cache, Cache::estimatedSize)
+                .register(meterRegistry);
+        // Any change of the documents may change the results of any search
+        documentChangeListener.addListener(fileName -> clear());
+    }
+
+    public boolean isEnabled() {
+        return CACHE_SIZE > 0 && documentChangeListener.isEnabled();
+    }
+
+    // Generation to pass to put() (read it before the search)
+    public long generation() {
+        return generation.get();
+    }
+
+    // Results of a cached query near the query (null if there is none)
+    public List<DocumentSummarizer> find(String queryText, float[] vector, SearchFilter filter,
+            int limit) {
+        if (!isEnabled() || !documentChangeListener.isListening()) {
+            return null;
+        }
+        SearchScope scope = new SearchScope(filter, limit);
+        CachedSearch nearest = cache.getIfPresent(new SearchKey(queryText, scope));
+        double nearestDistance = 0;
+        // With the hybrid search, the results also depend on the words of the query (a similar
+        // question with another part number must be searched again)
+        if (nearest == null && !postgreSQLUtil.isHybridEnabled()) {
+            float[] unitVector = unitVector(vector);
+            SearchKey nearestKey = null;
+            nearestDistance = Double.MAX_VALUE;
+            for (SearchKey key : scopes.getOrDefault(scope, Set.of())) {
+                CachedSearch cached = cache.asMap().get(key);
+                if (cached == null) {
+                    continue;
+                }
+                double distance = 1 - dot(cached.unitVector(), unitVector);
+                if (distance <= MAX_DISTANCE && distance < nearestDistance) {
+                    nearestKey = key;
+                    nearestDistance = distance;
+                }
+            }
+            // getIfPresent : the entry may have expired, and the read is recorded for the eviction
+            nearest = nearestKey == null ? null : cache.getIfPresent(nearestKey);
+        }
+        if (nearest == null) {
+            missCounter.increment();
+            return null;
+        }
+        hitCounter.increment();
+        LOGGER.debug("Search result cache hit (distance: {}): {}", nearestDistance,
+                nearest.queryText());
+        return nearest.results();
+    }
+
+    // Cache the results of a search (not if the documents changed since the generation)
+    public void put(long searchGeneration, String queryText, float[] vector, SearchFilter filter,
+            int limit, List<DocumentSummarizer> results) {
+        if (!isEnabled() || !documentChangeListener.isListening()
+                || searchGeneration != generation.get()) {
+            return;
+        }
+        SearchKey key = new SearchKey(queryText, new SearchScope(filter, limit));
+        // Added to the scope before the entry (a lookup skips a key without entry)
+        scopes.computeIfAbsent(key.scope(), scope -> ConcurrentHashMap.newKeySet()).add(key);
+        cache.put(key, new CachedSearch(queryText, unitVector(vector), List.copyOf(results)));
+        // The cache may have been cleared between the check and the put
+        if (searchGeneration != generation.get()) {
+            cache.invalidate(key);
+            removeFromScope(key);
+        }
+    }
+
+    private void clear() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+        scopes.clear();
+    }
+
+    private void removeFromScope(SearchKey key) {
+        scopes.computeIfPresent(key.scope(), (scope, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    private static float[] unitVector(float[] vector) {
+        double norm = Math.sqrt(dot(vector, vector));
+        float[] unitVector = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            unitVector[i] = norm == 0 ? 0 : (float) (vector[i] / norm);
+        }
+        return unitVector;
+    }
+
+    private static double dot(float[] a, float[] b) {
+        if (a.length != b.length) {
+            return 0;
+        }
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+}
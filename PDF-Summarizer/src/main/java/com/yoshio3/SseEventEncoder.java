@@ -0,0 +1,144 @@
+package com.yoshio3;
+
+import com.yoshio3.entities.CreateAreaInHTML;
+import com.yoshio3.entities.CreateLinkInHTML;
+import com.yoshio3.entities.CreateMessageInHTML;
+import com.yoshio3.entities.EventInHTML;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.stereotype.Component;
+
+// Encodes the events of the page (index.html) as Server-Sent Events : "data:{...}\n\n".
+// The JSON of the events has fixed fields, so it is written directly in UTF-8 into a buffer of
+// the exact size (one pass to compute the size, one pass to write), without reflection or
+// intermediate strings. Only the characters which JSON requires are escaped (quote, backslash,
+// control characters) : the spaces and line breaks of a summary stay in one "data:" line.
+@Component
+public class SseEventEncoder {
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+
+    public DataBuffer encode(EventInHTML event, DataBufferFactory bufferFactory) {
+        if (event instanceof CreateMessageInHTML message) {
+            return encode(bufferFactory, "type", message.type(), "id", message.id(),
+                    "content", message.content());
+        } else if (event instanceof CreateLinkInHTML link) {
+            return encode(bufferFactory, "type", link.type(), "id", link.id(),
+                    "link", link.link(), "pageNumber", link.pageNumber(),
+                    "fileName", link.fileName());
+        } else {
+            CreateAreaInHTML area = (CreateAreaInHTML) event;
+            return encode(bufferFactory, "type", area.type(), "id", area.id());
+        }
+    }
+
+    // The fields are the pairs of a name and a value (String or Integer, null is omitted)
+    private DataBuffer encode(DataBufferFactory bufferFactory, Object... fields) {
+        // "data:{" + fields + "}\n\n"
+        int size = 6 + 3;
+        boolean first = true;
+        for (int i = 0; i < fields.length; i += 2) {
+            if (fields[i + 1] == null) {
+                continue;
+            }
+            // ',' + name + ':' + value
+            size += (first ? 0 : 1) + jsonLength((String) fields[i]) + 1
+                    + valueLength(fields[i + 1]);
+            first = false;
+        }
+        DataBuffer buffer = bufferFactory.allocateBuffer(size);
+        writeAscii(buffer, "data:{");
+        first = true;
+        for (int i = 0; i < fields.length; i += 2) {
+            if (fields[i + 1] == null) {
+                continue;
+            }
+            if (!first) {
+                buffer.write((byte) ',');
+            }
+            first = false;
+            writeJson(buffer, (String) fields[i]);
+            buffer.write((byte) ':');
+            if (fields[i + 1] instanceof String value) {
+                writeJson(buffer, value);
+            } else {
+                writeAscii(buffer, fields[i + 1].toString());
+            }
+        }
+        writeAscii(buffer, "}\n\n");
+        return buffer;
+    }
+
+    private static int valueLength(Object value) {
+        return value instanceof String text ? jsonLength(text) : value.toString().length();
+    }
+
+    // Length of the JSON string in UTF-8 (with the quotes)
+    private static int jsonLength(String value) {
+        int length = 2;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                length += 2;
+            } else if (c < 0x20) {
+                length += c == '\n' || c == '\r' || c == '\t' ? 2 : 6;
+            } else if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // An unpaired surrogate is written as '?' (as String.getBytes())
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void writeJson(DataBuffer buffer, String value) {
+        buffer.write((byte) '"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                buffer.write((byte) '\\').write((byte) c);
+            } else if (c < 0x20) {
+                buffer.write((byte) '\\');
+                switch (c) {
+                    case '\n' -> buffer.write((byte) 'n');
+                    case '\r' -> buffer.write((byte) 'r');
+                    case '\t' -> buffer.write((byte) 't');
+                    default -> buffer.write((byte) 'u').write((byte) '0').write((byte) '0')
+                            .write(HEX_DIGITS[c >> 4]).write(HEX_DIGITS[c & 0xF]);
+                }
+            } else if (c < 0x80) {
+                buffer.write((byte) c);
+            } else if (c < 0x800) {
+                buffer.write((byte) (0xC0 | (c >> 6))).write((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.write((byte) (0xF0 | (codePoint >> 18)))
+                        .write((byte) (0x80 | ((codePoint >> 12) & 0x3F)))
+                        .write((byte) (0x80 | ((codePoint >> 6) & 0x3F)))
+                        .write((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.write((byte) '?');
+            } else {
+                buffer.write((byte) (0xE0 | (c >> 12))).write((byte) (0x80 | ((c >> 6) & 0x3F)))
+                        .write((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        buffer.write((byte) '"');
+    }
+
+    private static void writeAscii(DataBuffer buffer, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            buffer.write((byte) value.charAt(i));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.yoshio3;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.yoshio3.entities.DocumentSummarizer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+// Cache of the summaries generated by Azure OpenAI for a document (chunk) and a query : the same
+// question on the same document is answered without calling Azure OpenAI again.
+// Only the completed summaries are cached. The summaries of a file are removed when the file is
+// ingested again or deleted (DocumentChangeListener) ; while the listener is not connected, the
+// cache is not used.
+@Component
+public class SummaryCache {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(SummaryCache.class);
+
+    // Maximum number of cached summaries (0 : no cache)
+    @Value("${azure.openai.summary.cache.size:5000}")
+    private long CACHE_SIZE;
+
+    // Time (in seconds) a summary is kept in the cache
+    @Value("${azure.openai.summary.cache.ttl.seconds:86400}")
+    private long CACHE_TTL_SECONDS;
+
+    @Autowired
+    private DocumentChangeListener documentChangeListener;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Cache<SummaryKey, CachedSummary> cache;
+    // Incremented when summaries are removed : a summary whose generation started before is not
+    // cached (it may be based on the old text of the document)
+    private final AtomicLong generation = new AtomicLong();
+
+    // Document (chunk), normalized query and model name
+    private record SummaryKey(UUID documentId, String queryText, String modelName) {
+    }
+
+    // The file name is kept to remove the summaries of a file
+    private record CachedSummary(String fileName, String summary) {
+    }
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(CACHE_SIZE)
+                .expireAfterWrite(Duration.ofSeconds(CACHE_TTL_SECONDS))
+                .recordStats()
+                .build();
+        // Hit rate : cache.gets{cache=document.summary,result=hit|miss}
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "document.summary");
+        documentChangeListener.addListener(this::invalidate);
+    }
+
+    public boolean isEnabled() {
+        return CACHE_SIZE > 0 && documentChangeListener.isEnabled();
+    }
+
+    // Generation to pass to put() (read it before the request to Azure OpenAI)
+    public long generation() {
+        return generation.get();
+    }
+
+    // Cached summary of the document for the query (null if there is none)
+    public String get(DocumentSummarizer docSummary, String queryText, String modelName) {
+        if (!isEnabled() || !documentChangeListener.isListening()) {
+            return null;
+        }
+        CachedSummary cached =
+                cache.getIfPresent(new SummaryKey(docSummary.id(), queryText, modelName));
+        return cached == null ? null : cached.summary();
+    }
+
+    // Cache the completed summary (not if the documents changed since the generation)
+    public void put(long summaryGeneration, DocumentSummarizer docSummary, String queryText,
+            String modelName, String summary) {
+        if (!isEnabled() || !documentChangeListener.isListening()
+                || summaryGeneration != generation.get() || summary.isEmpty()) {
+            return;
+        }
+        SummaryKey key = new SummaryKey(docSummary.id(), queryText, modelName);
+        cache.put(key, new CachedSummary(docSummary.filename(), summary));
+        // The summaries may have been removed between the check and the put
+        if (summaryGeneration != generation.get()) {
+            cache.invalidate(key);
+        }
+    }
+
+    // Remove the summaries of the file (null : all the summaries)
+    private void invalidate(String fileName) {
+        generation.incrementAndGet();
+        if (fileName == null) {
+            cache.invalidateAll();
+            return;
+        }
+        boolean removed = cache.asMap().values()
+                .removeIf(cached -> cached.fileName().equals(fileName));
+        if (removed) {
+            LOGGER.debug("Summaries of {} removed from the cache", fileName);
+        }
+    }
+}
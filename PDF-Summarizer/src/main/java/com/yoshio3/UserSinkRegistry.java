@@ -0,0 +1,190 @@
+package com.yoshio3;
+
+import com.yoshio3.entities.EventInHTML;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.Scannable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import reactor.core.publisher.Sinks.EmitResult;
+
+// Sinks of the clients (one per userId of index.html). Each element of a sink is the stream of
+// the events of one document.
+// A sink is created by the first request of the client : the stream of the events, or a
+// question sent before the stream is opened (the events wait in the buffer of the sink).
+// A sink without subscriber is removed after the idle timeout : the browser was closed, or the
+// stream was never opened. EventSource reconnects within this time after a network error, and
+// receives the buffered events.
+// The stream of a document is run by the first subscriber only : if two streams of the client
+// are open (a reconnection overlapping the previous stream), the summary is not requested twice.
+@Component
+public class UserSinkRegistry {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(UserSinkRegistry.class);
+
+    // Maximum number of sinks (more clients are rejected)
+    @Value("${azure.sse.sink.max:10000}")
+    private int MAX_SINKS;
+
+    // Maximum number of summaries waiting for the client in a sink (more summaries are dropped)
+    @Value("${azure.sse.sink.buffer.size:256}")
+    private int SINK_BUFFER_SIZE;
+
+    // Time (in seconds) a sink is kept without subscriber
+    @Value("${azure.sse.sink.idle.timeout.seconds:60}")
+    private long IDLE_TIMEOUT_SECONDS;
+
+    // Interval (in seconds) of the search for the idle sinks
+    private static final long EVICTION_INTERVAL_SECONDS = 10;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<UUID, UserSink> userSinks = new ConcurrentHashMap<>();
+    private ScheduledExecutorService evictionExecutor;
+    private Counter droppedCounter;
+
+    // Sink of a client. The number of subscribers is only changed in the functions of
+    // ConcurrentHashMap.compute (so a sink is not removed while it is subscribed).
+    private static final class UserSink {
+        private final Sinks.Many<Flux<EventInHTML>> sink;
+        private int subscribers;
+        private volatile long lastActiveNanos = System.nanoTime();
+
+        private UserSink(int bufferSize) {
+            // The summaries are kept until the client requests them
+            sink = Sinks.many().multicast().onBackpressureBuffer(bufferSize, false);
+        }
+
+        private int buffered() {
+            Integer buffered = sink.scan(Scannable.Attr.BUFFERED);
+            return buffered == null ? 0 : buffered;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("sse.sinks.live", userSinks, Map::size)
+                .description("Sinks of the clients").register(meterRegistry);
+        Gauge.builder("sse.sinks.buffered", this,
+                registry -> registry.userSinks.values().stream()
+                        .mapToInt(UserSink::buffered).sum())
+                .description("Summaries waiting for the clients").register(meterRegistry);
+        droppedCounter = Counter.builder("sse.sinks.dropped")
+                .description("Summaries dropped (full or evicted sink)").register(meterRegistry);
+        evictionExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-sink-eviction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictionExecutor.scheduleWithFixedDelay(this::evictIdleSinks, EVICTION_INTERVAL_SECONDS,
+                EVICTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        evictionExecutor.shutdownNow();
+    }
+
+    // Streams of the summaries of the client (the sink is kept while it is subscribed)
+    public Flux<Flux<EventInHTML>> subscribe(UUID userId) {
+        return Flux.defer(() -> {
+            UserSink userSink = acquire(userId, true);
+            if (userSink == null) {
+                return Flux.error(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                        "Too many clients"));
+            }
+            LOGGER.trace("USER ID IS ADDED: {}", userId);
+            return userSink.sink.asFlux().doFinally(signal -> release(userId, userSink));
+        });
+    }
+
+    // Add the events of a document to the sink of the client
+    public void emit(UUID userId, Flux<EventInHTML> events) {
+        UserSink userSink = acquire(userId, false);
+        if (userSink == null) {
+            droppedCounter.increment();
+            LOGGER.warn("Too many clients, summary dropped: {}", userId);
+            return;
+        }
+        userSink.lastActiveNanos = System.nanoTime();
+        AtomicBoolean claimed = new AtomicBoolean();
+        Flux<EventInHTML> singleUse = Flux.defer(
+                () -> claimed.compareAndSet(false, true) ? events : Flux.empty());
+        // The searches of the client may emit at the same time : the emissions are serialized
+        EmitResult result;
+        synchronized (userSink) {
+            result = userSink.sink.tryEmitNext(singleUse);
+        }
+        if (result.isFailure()) {
+            droppedCounter.increment();
+            LOGGER.error("Summary dropped ({}): {}", result, userId);
+        }
+    }
+
+    // Get or create the sink of the client (null if there are too many sinks)
+    private UserSink acquire(UUID userId, boolean subscribe) {
+        return userSinks.compute(userId, (key, userSink) -> {
+            if (userSink == null) {
+                if (userSinks.size() >= MAX_SINKS) {
+                    return null;
+                }
+                userSink = new UserSink(SINK_BUFFER_SIZE);
+                LOGGER.debug("User ID: {} User Sink: {} is Added.", userId, userSink.sink);
+            }
+            if (subscribe) {
+                userSink.subscribers++;
+            }
+            return userSink;
+        });
+    }
+
+    // The client disconnected (the idle timeout starts)
+    private void release(UUID userId, UserSink userSink) {
+        userSinks.computeIfPresent(userId, (key, current) -> {
+            if (current == userSink) {
+                current.subscribers--;
+                current.lastActiveNanos = System.nanoTime();
+            }
+            return current;
+        });
+    }
+
+    // Remove the sinks without subscriber which have been idle longer than the timeout
+    private void evictIdleSinks() {
+        long idleSince = System.nanoTime() - TimeUnit.SECONDS.toNanos(IDLE_TIMEOUT_SECONDS);
+        for (UUID userId : userSinks.keySet()) {
+            userSinks.computeIfPresent(userId, (key, userSink) -> {
+                if (userSink.subscribers > 0 || userSink.lastActiveNanos - idleSince > 0) {
+                    return userSink;
+                }
+                int buffered = userSink.buffered();
+                if (buffered > 0) {
+                    droppedCounter.increment(buffered);
+                }
+                synchronized (userSink) {
+                    userSink.sink.tryEmitComplete();
+                }
+                LOGGER.debug("User ID: {} User Sink is Removed.", userId);
+                return null;
+            });
+        }
+    }
+}
@@ -1,3 +1,3 @@
 package com.yoshio3.entities;
 
-public record CreateAreaInHTML(String type, String id) {}  
\ No newline at end of file
+public record CreateAreaInHTML(String type, String id) implements EventInHTML {}
\ No newline at end of file
@@ -1,3 +1,3 @@
 package com.yoshio3.entities;
 
-public record CreateLinkInHTML(String type, String id, String link, int pageNumber, String fileName) {}  
+public record CreateLinkInHTML(String type, String id, String link, int pageNumber, String fileName) implements EventInHTML {}
@@ -1,3 +1,3 @@
 package com.yoshio3.entities;
 
-public record CreateMessageInHTML (String type, String id, String content) {} 
+public record CreateMessageInHTML (String type, String id, String content) implements EventInHTML {}
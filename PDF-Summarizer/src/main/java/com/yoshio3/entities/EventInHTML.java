@@ -0,0 +1,4 @@
+package com.yoshio3.entities;
+
+// Event sent to the page (index.html) to update the HTML
+public sealed interface EventInHTML permits CreateAreaInHTML, CreateLinkInHTML, CreateMessageInHTML {}
@@ -0,0 +1,23 @@
+package com.yoshio3.entities;
+
+import java.time.LocalDate;
+import java.util.List;
+
+// Filter of the searched documents : file names, upload date range (inclusive) and tags (any of)
+public record SearchFilter(List<String> fileNames, LocalDate uploadedFrom, LocalDate uploadedTo,
+        List<String> tags) {
+
+    public SearchFilter {
+        fileNames = fileNames == null ? List.of() : List.copyOf(fileNames);
+        tags = tags == null ? List.of() : List.copyOf(tags);
+    }
+
+    public boolean isEmpty() {
+        return fileNames.isEmpty() && !hasFileMetadataFilter();
+    }
+
+    // The upload date and the tags are stored in the table of the files
+    public boolean hasFileMetadataFilter() {
+        return uploadedFrom != null || uploadedTo != null || !tags.isEmpty();
+    }
+}